@@ -19,13 +19,21 @@
 package org.kontalk.client;
 
 import javax.net.ssl.SSLContext;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -33,11 +41,19 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.Header;
@@ -49,6 +65,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
@@ -70,35 +87,68 @@ public class HTTPFileClient {
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
 
+    /** Regex used to parse content-range headers for resumed download. */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+            .compile("bytes\\s+(\\d+)-");
+
+    /** Size of each request body for uploads in chunks. */
+    static final long CHUNK_SIZE = 1024 * 1024;
+
+    /** Minimum file size for keeping data of interrupted downloads. */
+    private static final long RESUME_MIN_SIZE = 1024 * 1024;
+
     /** Message flags header for upload. */
     private static final String HEADER_MESSAGE_FLAGS = "X-Message-Flags";
 
+    /** Time after which idle connections are closed. */
+    private static final int IDLE_TIMEOUT = 60; // seconds
+
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
     private final boolean mValidateCertificate;
+    private final int mMaxConnections;
 
-    private HttpRequestBase mCurrentRequest;
+    private final Set<HttpRequestBase> mActiveRequests = ConcurrentHashMap.newKeySet();
     private CloseableHttpClient mHTTPClient = null;
-    private ProgressListener mCurrentListener = null;
 
+    /**
+     * Create a client for parallel transfers. Connections are kept alive and
+     * reused.
+     * @param maxConnections maximum number of open connections
+     */
     public HTTPFileClient(PrivateKey privateKey,
             X509Certificate bridgeCert,
-            boolean validateCertificate) {
+            boolean validateCertificate,
+            int maxConnections) {
         mPrivateKey = privateKey;
         mCertificate = bridgeCert;
         mValidateCertificate = validateCertificate;
+        mMaxConnections = maxConnections;
     }
 
-    // TODO unused
+    /** Abort all running transfers. See Transfer#abort() for a single one. */
     public void abort() {
-        if (mCurrentRequest != null){
-            mCurrentRequest.abort();
-            mCurrentRequest = null;
+        mActiveRequests.forEach(HttpRequestBase::abort);
+    }
+
+    /** Abort all running transfers and close all connections. */
+    public synchronized void close() {
+        this.abort();
+        if (mHTTPClient != null) {
+            HttpClientUtils.closeQuietly(mHTTPClient);
+            mHTTPClient = null;
         }
-        if (mCurrentListener != null) {
-            mCurrentListener.updateProgress(-3);
-            mCurrentListener = null;
+    }
+
+    private synchronized CloseableHttpClient httpClient(KonException.Error error)
+            throws KonException {
+        if (mHTTPClient == null) {
+            mHTTPClient = httpClientOrNull(mPrivateKey, mCertificate, mValidateCertificate,
+                    mMaxConnections);
+            if (mHTTPClient == null)
+                throw new KonException(error);
         }
+        return mHTTPClient;
     }
 
     /**
@@ -107,31 +157,65 @@ public class HTTPFileClient {
      * @param base base directory in which the download is saved
      * @return absolute path of downloaded file, empty if download failed
      */
-    public synchronized Path download(URI url, Path base, ProgressListener listener)
+    public Path download(URI url, Path base, ProgressListener listener)
             throws KonException {
-        if (mHTTPClient == null) {
-            mHTTPClient = httpClientOrNull(mPrivateKey, mCertificate, mValidateCertificate);
-            if (mHTTPClient == null)
-                throw new KonException(KonException.Error.DOWNLOAD_CREATE);
-        }
+        return this.download(url, base, listener, (in, outFile) -> {
+            try (FileOutputStream out = new FileOutputStream(outFile)) {
+                IOUtils.copy(in, out);
+            }
+        }, new Transfer());
+    }
+
+    /**
+     * Download file to directory, the received data is passed to a handler
+     * while it arrives.
+     * Received data of large files is kept if the download is interrupted
+     * and the download is resumed on the next call for the same URL.
+     * @param url URL of file
+     * @param base base directory in which the download is saved
+     * @param handler writes the downloaded data to the output file
+     * @param transfer used to abort the download
+     * @return absolute path of downloaded file, empty if download failed
+     */
+    public Path download(URI url, Path base, ProgressListener listener,
+            ContentHandler handler, Transfer transfer)
+            throws KonException {
+        CloseableHttpClient httpClient = this.httpClient(KonException.Error.DOWNLOAD_CREATE);
 
-        LOGGER.config("from URL=" + url+ " ...");
-        mCurrentRequest = new HttpGet(url);
-        mCurrentListener = listener;
+        PartialDownload partial = PartialDownload.load(url, base);
+        long offset = partial.offset();
+
+        LOGGER.config("from URL=" + url+ " ..." + (offset > 0 ? " resume at "+offset : ""));
+        HttpGet request = new HttpGet(url);
+        if (offset > 0) {
+            request.setHeader("Range", "bytes=" + offset + "-");
+            // full content if file changed
+            request.setHeader("If-Range", partial.getValidator());
+        }
+        if (!transfer.start(request)) {
+            LOGGER.info("download aborted");
+            throw new KonException(KonException.Error.DOWNLOAD_EXECUTE);
+        }
+        mActiveRequests.add(request);
 
         // execute request
         CloseableHttpResponse response = null;
         try {
             try {
-                response = mHTTPClient.execute(mCurrentRequest);
+                response = httpClient.execute(request);
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, "can't execute request", ex);
                 throw new KonException(KonException.Error.DOWNLOAD_EXECUTE);
             }
 
             int code = response.getStatusLine().getStatusCode();
-            if (code != HttpStatus.SC_OK) {
+            if (code == HttpStatus.SC_OK) {
+                offset = 0;
+            } else if (code != HttpStatus.SC_PARTIAL_CONTENT || offset == 0 ||
+                    parseRangeStart(response.getFirstHeader("Content-Range")) != offset) {
                 LOGGER.warning("unexpected response code: " + code);
+                // start again next time
+                partial.delete();
                 throw new KonException(KonException.Error.DOWNLOAD_RESPONSE);
             }
 
@@ -141,24 +225,9 @@ public class HTTPFileClient {
                 throw new KonException(KonException.Error.DOWNLOAD_RESPONSE);
             }
 
-            // try getting filename from header
-            String filename = "";
-            Header dispHeader = response.getFirstHeader("Content-Disposition");
-            if (dispHeader != null) {
-                filename = parseContentDisposition(dispHeader.getValue());
-                // never trust incoming data
-                filename = Paths.get(filename).getFileName().toString();
-                if (filename.isEmpty()) {
-                    LOGGER.warning("can't parse filename in content: "+dispHeader.getValue());
-                }
-            }
-            // NOTE: could try getting the extension (and filename) from URL, security?
-            if (filename.isEmpty()) {
-                // fallback
-                String type = StringUtils.defaultString(entity.getContentType().getValue());
-                String ext = MediaUtils.extensionForMIME(type);
-                filename = "att_" + EncodingUtils.randomString(4) + "." + ext;
-            }
+            String filename = offset > 0 ?
+                    partial.getFilename() :
+                    filename(response, entity);
 
             // get file size
             long s = -1;
@@ -172,69 +241,203 @@ public class HTTPFileClient {
                     LOGGER.log(Level.WARNING, "can' parse file size", ex);
                 }
             }
-            final long fileSize = s;
-            mCurrentListener.updateProgress(s < 0 ? -2 : 0);
+            long fileSize = s < 0 ? s : offset + s;
+            listener.updateProgress(s < 0 ? -2 : (int) (offset / (fileSize * 1.0) * 100));
+
+            // keep received data for resuming, needs a validator
+            String validator = offset > 0 ? partial.getValidator() : validator(response);
+            boolean keep = fileSize >= RESUME_MIN_SIZE && !validator.isEmpty();
 
             File outFile = MediaUtils.nonExistingFileForPath(Paths.get(base.toString(), filename));
-            try (FileOutputStream out = new FileOutputStream(outFile)){
-                CountingOutputStream cOut = new CountingOutputStream(out) {
-                    @Override
-                    protected synchronized void afterWrite(int n) {
-                        if (fileSize <= 0)
-                            return;
-
-                        // inform listener
-                        mCurrentListener.updateProgress(
-                                (int) (this.getByteCount() /(fileSize * 1.0) * 100));
-                    }
-                };
-                entity.writeTo(cOut);
+            try (InputStream in = entity.getContent();
+                    OutputStream partialOut = !keep ? null :
+                            offset > 0 ? partial.resume() :
+                            partial.start(validator, filename, fileSize)) {
+                InputStream cIn = progressStream(in, offset, fileSize, listener);
+                if (partialOut != null)
+                    cIn = new TeeInputStream(cIn, partialOut);
+                if (offset > 0) {
+                    // data received before is read from disk
+                    InputStream partialIn = new BoundedInputStream(
+                            Files.newInputStream(partial.dataPath), offset);
+                    cIn = new SequenceInputStream(partialIn, cIn);
+                }
+                try (InputStream dataIn = new BufferedInputStream(cIn)) {
+                    handler.handle(dataIn, outFile);
+                }
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, "can't download file", ex);
+                if (outFile.exists() && !outFile.delete())
+                    LOGGER.warning("can't delete incomplete file: "+outFile);
+                if (!keep)
+                    partial.delete();
                 throw new KonException(KonException.Error.DOWNLOAD_WRITE);
             }
 
+            partial.delete();
+
             // release http connection resource
             EntityUtils.consumeQuietly(entity);
 
             return outFile.toPath();
         } finally {
             HttpClientUtils.closeQuietly(response);
-            mCurrentRequest = null;
-            mCurrentListener = null;
+            mActiveRequests.remove(request);
+        }
+    }
+
+    /** Delete data kept from an interrupted download of the URL. */
+    public static void discardPartialDownload(URI url, Path base) {
+        PartialDownload.load(url, base).delete();
+    }
+
+    private static String filename(CloseableHttpResponse response, HttpEntity entity) {
+        // try getting filename from header
+        String filename = "";
+        Header dispHeader = response.getFirstHeader("Content-Disposition");
+        if (dispHeader != null) {
+            filename = parseContentDisposition(dispHeader.getValue());
+            // never trust incoming data
+            filename = Paths.get(filename).getFileName().toString();
+            if (filename.isEmpty()) {
+                LOGGER.warning("can't parse filename in content: "+dispHeader.getValue());
+            }
+        }
+        // NOTE: could try getting the extension (and filename) from URL, security?
+        if (filename.isEmpty()) {
+            // fallback
+            String type = StringUtils.defaultString(entity.getContentType().getValue());
+            String ext = MediaUtils.extensionForMIME(type);
+            filename = "att_" + EncodingUtils.randomString(4) + "." + ext;
+        }
+        return filename;
+    }
+
+    /** Strong validator of response content for 'If-Range' header. */
+    private static String validator(CloseableHttpResponse response) {
+        Header eTag = response.getFirstHeader("ETag");
+        if (eTag != null && !eTag.getValue().startsWith("W/"))
+            return eTag.getValue();
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : "";
+    }
+
+    /** Parse start position in 'Content-Range' header, -1 if invalid. */
+    private static long parseRangeStart(Header contentRange) {
+        if (contentRange == null)
+            return -1;
+        Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange.getValue());
+        if (!m.find())
+            return -1;
+        try {
+            return Long.parseLong(m.group(1));
+        } catch (NumberFormatException ex) {
+            return -1;
         }
     }
 
     /**
      * Upload file using a PUT request.
      */
-    public synchronized void upload(File file, URI uploadURL, String mime, boolean encrypted)
+    public void upload(File file, URI uploadURL, String mime, boolean encrypted,
+            ProgressListener listener, Transfer transfer)
             throws KonException {
+        long length = file.length();
+        listener.updateProgress(0);
+        try (InputStream in = progressStream(new FileInputStream(file), 0, length, listener)) {
+            HttpPut req = putRequest(uploadURL, mime, encrypted);
+            req.setEntity(new InputStreamEntity(in, length));
+            this.execute(req, transfer);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't read file", ex);
+            throw new KonException(KonException.Error.UPLOAD_EXECUTE);
+        }
+    }
 
-        if (mHTTPClient == null) {
-            mHTTPClient = httpClientOrNull(mPrivateKey, mCertificate, mValidateCertificate);
-            if (mHTTPClient == null)
-                throw new KonException(KonException.Error.UPLOAD_CREATE);
+    /**
+     * Upload file in chunks using a PUT request with 'Content-Range' header
+     * for each chunk. The upload starts at the offset of acknowledged data
+     * and can be resumed with the same object if it failed.
+     */
+    public void upload(ChunkedUpload upload, ProgressListener listener, Transfer transfer)
+            throws KonException {
+        long total = upload.mFile.length();
+        if (total == 0) {
+            this.upload(upload.mFile, upload.mURL, upload.mMime, upload.mEncrypted, listener,
+                    transfer);
+            return;
         }
 
-        // request
+        LOGGER.config("chunked, total="+total+", resume at "+upload.mOffset);
+        listener.updateProgress((int) (upload.mOffset / (total * 1.0) * 100));
+        while (upload.mOffset < total) {
+            long start = upload.mOffset;
+            long length = Math.min(CHUNK_SIZE, total - start);
+            try (FileChannel channel = FileChannel.open(upload.mFile.toPath(),
+                            StandardOpenOption.READ);
+                    InputStream in = progressStream(new BoundedInputStream(
+                            Channels.newInputStream(channel.position(start)), length),
+                            start, total, listener)) {
+                HttpPut req = putRequest(upload.mURL, upload.mMime, upload.mEncrypted);
+                req.setHeader("Content-Range",
+                        "bytes " + start + "-" + (start + length - 1) + "/" + total);
+                req.setEntity(new InputStreamEntity(in, length));
+                this.execute(req, transfer);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't read file", ex);
+                throw new KonException(KonException.Error.UPLOAD_EXECUTE);
+            }
+            // chunk was acknowledged, a failed chunk is sent again
+            upload.mOffset = start + length;
+        }
+    }
+
+    /**
+     * Upload data using a PUT request with chunked transfer encoding. The
+     * data is written by the writer while it is sent, the total size does
+     * not need to be known in advance.
+     * @return number of bytes uploaded
+     */
+    public long upload(ContentWriter writer, URI uploadURL, String mime, boolean encrypted,
+            Transfer transfer)
+            throws KonException {
+        AtomicLong byteCount = new AtomicLong();
+        EntityTemplate entity = new EntityTemplate(out -> {
+            CountingOutputStream cOut = new CountingOutputStream(out);
+            writer.writeTo(cOut);
+            cOut.flush();
+            byteCount.set(cOut.getByteCount());
+        });
+        entity.setChunked(true);
+        HttpPut req = putRequest(uploadURL, mime, encrypted);
+        req.setEntity(entity);
+        this.execute(req, transfer);
+        return byteCount.get();
+    }
+
+    private static HttpPut putRequest(URI uploadURL, String mime, boolean encrypted) {
         HttpPut req = new HttpPut(uploadURL);
         req.setHeader("Content-Type", mime);
         if (encrypted)
             req.addHeader(HEADER_MESSAGE_FLAGS, "encrypted");
+        return req;
+    }
+
+    private void execute(HttpPut req, Transfer transfer) throws KonException {
+        CloseableHttpClient httpClient = this.httpClient(KonException.Error.UPLOAD_CREATE);
 
-        LOGGER.config("to URL=" + uploadURL+ " ...");
+        LOGGER.config("to URL=" + req.getURI()+ " ...");
+        if (!transfer.start(req)) {
+            LOGGER.info("upload aborted");
+            throw new KonException(KonException.Error.UPLOAD_EXECUTE);
+        }
 
         // execute request
         CloseableHttpResponse response = null;
+        mActiveRequests.add(req);
         try {
-            try(FileInputStream in = new FileInputStream(file)) {
-                req.setEntity(new InputStreamEntity(in, file.length()));
-
-                mCurrentRequest = req;
-
-                //response = execute(currentRequest);
-                response = mHTTPClient.execute(mCurrentRequest);
+            try {
+                response = httpClient.execute(req);
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, "can't upload file", ex);
                 throw new KonException(KonException.Error.UPLOAD_EXECUTE);
@@ -247,13 +450,30 @@ public class HTTPFileClient {
             }
         } finally {
             HttpClientUtils.closeQuietly(response);
-            mCurrentRequest = null;
+            mActiveRequests.remove(req);
         }
     }
 
+    /** Inform listener about transferred data, counted from start of total bytes. */
+    private static InputStream progressStream(InputStream in, long start, long total,
+            ProgressListener listener) {
+        return new CountingInputStream(in) {
+            @Override
+            protected synchronized void afterRead(int n) {
+                super.afterRead(n);
+                if (total <= 0 || n <= 0)
+                    return;
+
+                listener.updateProgress(
+                        (int) ((start + this.getByteCount()) / (total * 1.0) * 100));
+            }
+        };
+    }
+
     private static CloseableHttpClient httpClientOrNull(PrivateKey privateKey,
             X509Certificate certificate,
-            boolean validateCertificate) {
+            boolean validateCertificate,
+            int maxConnections) {
         HttpClientBuilder clientBuilder = HttpClients.custom();
         try {
             SSLContext sslContext = TrustUtils.getCustomSSLContext(privateKey,
@@ -281,8 +501,13 @@ public class HTTPFileClient {
                 .build();
         clientBuilder.setDefaultRequestConfig(requestConfig);
 
-        // create connection manager
-        //ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
+        // pooled connections, kept alive between transfers
+        clientBuilder.setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .evictIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS)
+                // connections are bound to the client certificate principal
+                // otherwise and never reused for a new request
+                .disableConnectionState();
 
         return clientBuilder.build();
     }
@@ -303,4 +528,64 @@ public class HTTPFileClient {
     public interface ProgressListener {
         void updateProgress(int percent);
     }
+
+    /** Writes downloaded data to the output file. */
+    public interface ContentHandler {
+        void handle(InputStream in, File outFile) throws IOException;
+    }
+
+    /**
+     * State of a file upload in chunks. The offset of acknowledged data is
+     * advanced after each chunk.
+     */
+    public static final class ChunkedUpload {
+        private final File mFile;
+        private final URI mURL;
+        private final String mMime;
+        private final boolean mEncrypted;
+        private long mOffset = 0;
+
+        public ChunkedUpload(File file, URI uploadURL, String mime, boolean encrypted) {
+            mFile = file;
+            mURL = uploadURL;
+            mMime = mime;
+            mEncrypted = encrypted;
+        }
+
+        /** Number of bytes acknowledged by the server. */
+        public long getOffset() {
+            return mOffset;
+        }
+    }
+
+    /**
+     * Handle of an up- or download that can be aborted from another thread.
+     * Once aborted, all requests of the transfer fail.
+     */
+    public static final class Transfer {
+        private HttpRequestBase mRequest = null;
+        private boolean mAborted = false;
+
+        public synchronized void abort() {
+            mAborted = true;
+            if (mRequest != null)
+                mRequest.abort();
+        }
+
+        public synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        private synchronized boolean start(HttpRequestBase request) {
+            if (mAborted)
+                return false;
+            mRequest = request;
+            return true;
+        }
+    }
+
+    /** Writes upload data directly to the request body. */
+    public interface ContentWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
 }
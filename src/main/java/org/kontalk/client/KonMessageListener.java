@@ -162,16 +162,17 @@ final class KonMessageListener implements StanzaListener {
             return;
         }
 
-        // add message
-        mControl.onNewInMessage(ids, Optional.ofNullable(delayDate), content);
-
-        // send a 'received' for a receipt request (XEP-0184)
-        DeliveryReceiptRequest request = DeliveryReceiptRequest.from(m);
-        if (request != null && !ids.xmppID.isEmpty()) {
-            Message received = new Message(m.getFrom(), Message.Type.chat);
-            received.addExtension(new DeliveryReceipt(ids.xmppID));
-            mClient.sendPacket(received);
-        }
+        // add message, send a 'received' for a receipt request (XEP-0184)
+        // when it is stored
+        boolean receiptRequested = DeliveryReceiptRequest.from(m) != null &&
+                !ids.xmppID.isEmpty();
+        mControl.onNewInMessage(ids, Optional.ofNullable(delayDate), content, () -> {
+            if (receiptRequested) {
+                Message received = new Message(m.getFrom(), Message.Type.chat);
+                received.addExtension(new DeliveryReceipt(ids.xmppID));
+                mClient.sendPacket(received);
+            }
+        });
     }
 
     private void processHeadlineMessage(Message m) {
@@ -0,0 +1,151 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Received data of an interrupted download, used to resume it.
+ *
+ * The raw data is kept in a hidden file in the download directory, a
+ * sidecar state file stores the URL, the validator for the 'If-Range'
+ * header, the file name and the total length.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class PartialDownload {
+    private static final Logger LOGGER = Logger.getLogger(PartialDownload.class.getName());
+
+    private static final String PREFIX = ".partial_";
+    private static final String DATA_EXT = ".part";
+    private static final String STATE_EXT = ".state";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_VALIDATOR = "validator";
+    private static final String KEY_FILENAME = "filename";
+    private static final String KEY_LENGTH = "length";
+
+    final Path dataPath;
+    private final Path mStatePath;
+    private final URI mURL;
+
+    private String mValidator = "";
+    private String mFilename = "";
+    private long mLength = -1;
+
+    private PartialDownload(URI url, Path base) {
+        String id = DigestUtils.sha1Hex(url.toString());
+        dataPath = base.resolve(PREFIX + id + DATA_EXT);
+        mStatePath = base.resolve(PREFIX + id + STATE_EXT);
+        mURL = url;
+    }
+
+    /** Load the state of a previous download of the URL, if any. */
+    static PartialDownload load(URI url, Path base) {
+        PartialDownload partial = new PartialDownload(url, base);
+        if (!Files.exists(partial.mStatePath))
+            return partial;
+
+        Properties state = new Properties();
+        try (InputStream in = Files.newInputStream(partial.mStatePath)) {
+            state.load(in);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't read state", ex);
+            return partial;
+        }
+        if (!url.toString().equals(state.getProperty(KEY_URL)))
+            return partial;
+
+        partial.mValidator = state.getProperty(KEY_VALIDATOR, "");
+        partial.mFilename = state.getProperty(KEY_FILENAME, "");
+        try {
+            partial.mLength = Long.parseLong(state.getProperty(KEY_LENGTH, "-1"));
+        } catch (NumberFormatException ex) {
+            LOGGER.log(Level.WARNING, "can't parse length", ex);
+        }
+        return partial;
+    }
+
+    /** Number of bytes already received, 0 if download can't be resumed. */
+    long offset() {
+        if (mValidator.isEmpty() || mFilename.isEmpty() || !Files.exists(dataPath))
+            return 0;
+        try {
+            long size = Files.size(dataPath);
+            return mLength > 0 && size >= mLength ? 0 : size;
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't get size", ex);
+            return 0;
+        }
+    }
+
+    String getValidator() {
+        return mValidator;
+    }
+
+    String getFilename() {
+        return mFilename;
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    /** Start a new download, previous data is discarded. */
+    OutputStream start(String validator, String filename, long length) throws IOException {
+        mValidator = validator;
+        mFilename = filename;
+        mLength = length;
+
+        Properties state = new Properties();
+        state.setProperty(KEY_URL, mURL.toString());
+        state.setProperty(KEY_VALIDATOR, mValidator);
+        state.setProperty(KEY_FILENAME, mFilename);
+        state.setProperty(KEY_LENGTH, Long.toString(mLength));
+        try (OutputStream out = Files.newOutputStream(mStatePath)) {
+            state.store(out, null);
+        }
+        return Files.newOutputStream(dataPath);
+    }
+
+    /** Append to the received data. */
+    OutputStream resume() throws IOException {
+        return Files.newOutputStream(dataPath, StandardOpenOption.APPEND);
+    }
+
+    void delete() {
+        try {
+            Files.deleteIfExists(dataPath);
+            Files.deleteIfExists(mStatePath);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't delete partial download", ex);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reusable byte buffers for bulk en- and decryption.
+ *
+ * Buffers are large enough that PGP streams write whole partial packets
+ * instead of many small chunks. Buffers not returned are garbage collected,
+ * the pool only limits allocations.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class BufferPool {
+
+    /** Size of each buffer, must be a power of 2 for PGP partial packets. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** Maximum number of idle buffers kept. */
+    private static final int MAX_IDLE = 16;
+
+    private static final BlockingQueue<byte[]> IDLE = new ArrayBlockingQueue<>(MAX_IDLE);
+
+    private BufferPool() {
+    }
+
+    /** Take an idle buffer or create a new one. */
+    static byte[] take() {
+        byte[] buffer = IDLE.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /** Return a buffer that is not used anymore. */
+    static void release(byte[] buffer) {
+        if (buffer.length == BUFFER_SIZE)
+            IDLE.offer(buffer);
+    }
+}
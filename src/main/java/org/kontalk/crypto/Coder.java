@@ -19,7 +19,14 @@
 package org.kontalk.crypto;
 
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Logger;
 
@@ -84,20 +91,30 @@ public final class Coder {
         //INVALID_TIMESTAMP,
     }
 
-    private static final HashMap<Contact, PGPCoderKey> KEY_MAP = new HashMap<>();
+    /** Maximum number of parsed contact keys kept in memory. */
+    private static final int MAX_CACHED_KEYS = 500;
+
+    // parsed keys by fingerprint, least recently used first
+    private static final Map<String, PGPCoderKey> KEY_CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, PGPCoderKey>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PGPCoderKey> eldest) {
+                    return this.size() > MAX_CACHED_KEYS;
+                }
+            });
 
     public static Optional<PGPCoderKey> contactkey(Contact contact) {
-        if (KEY_MAP.containsKey(contact)) {
-            PGPCoderKey key = KEY_MAP.get(contact);
-            if (key.fingerprint.equals(contact.getFingerprint()))
-                return Optional.of(key);
-        }
+        String fingerprint = contact.getFingerprint();
+        PGPCoderKey key = fingerprint.isEmpty() ? null : KEY_CACHE.get(fingerprint);
+        if (key != null)
+            return Optional.of(key);
 
+        // parse without holding the lock, worst case a key is parsed twice
         byte[] rawKey = contact.getKey();
         if (rawKey.length != 0) {
-            PGPCoderKey key = PGPUtils.readPublicKey(rawKey).orElse(null);
+            key = PGPUtils.readPublicKey(rawKey).orElse(null);
             if (key != null) {
-                KEY_MAP.put(contact, key);
+                KEY_CACHE.put(key.fingerprint, key);
                 return Optional.of(key);
             }
         }
@@ -106,6 +123,33 @@ public final class Coder {
         return Optional.empty();
     }
 
+    /**
+     * Remove the parsed key with the given fingerprint from the cache.
+     * Called when a contact key is replaced or removed.
+     */
+    public static void invalidateKey(String fingerprint) {
+        if (!fingerprint.isEmpty())
+            KEY_CACHE.remove(fingerprint);
+    }
+
+    /**
+     * Parse and cache the keys of all given contacts in a background thread.
+     */
+    public static void warmUpKeys(Collection<Contact> contacts) {
+        Thread thread = new Thread("Key Cache Warm-up") {
+            @Override
+            public void run() {
+                contacts.stream()
+                        .filter(Contact::hasKey)
+                        .limit(MAX_CACHED_KEYS)
+                        .forEach(Coder::contactkey);
+                LOGGER.config("cached keys: "+KEY_CACHE.size());
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /**
      * Decrypt and verify the body of a message. Sets the encryption and signing
      * status of the message and errors that may occur are saved to the message.
@@ -123,6 +167,30 @@ public final class Coder {
         Decryptor.decryptAttachment(attachment, myKey, sender);
     }
 
+    /**
+     * Decrypt and verify attachment data while reading it from the input
+     * stream and write the plain data to the output file. Sets the encryption
+     * and signing status of the message attachment like
+     * {@link #decryptAttachment(PersonalKey, InAttachment, Contact)}.
+     * The attachment must be set as encrypted before.
+     * @throws IOException if the data can't be read or written
+     */
+    public static boolean decryptAttachment(PersonalKey myKey, InAttachment attachment, Contact sender,
+            InputStream in, File outFile) throws IOException {
+        return Decryptor.decryptAttachment(attachment, myKey, sender, in, outFile,
+                Optional.empty());
+    }
+
+    /**
+     * Like {@link #decryptAttachment(PersonalKey, InAttachment, Contact, InputStream, File)},
+     * the digest is updated with the plain data while it is written.
+     */
+    public static boolean decryptAttachment(PersonalKey myKey, InAttachment attachment, Contact sender,
+            InputStream in, File outFile, MessageDigest digest) throws IOException {
+        return Decryptor.decryptAttachment(attachment, myKey, sender, in, outFile,
+                Optional.of(digest));
+    }
+
     /**
      * Creates encrypted and signed message body.
      * Errors that may occur are saved to the message.
@@ -144,4 +212,15 @@ public final class Coder {
     public static Optional<File> encryptAttachment(PersonalKey myKey, OutMessage message, File file) {
         return new Encryptor(myKey, message).encryptAttachment(file);
     }
+
+    /**
+     * Encrypt and sign attachment data from the input stream while writing
+     * it to the output stream. Streams are not closed.
+     * Errors that may occur are saved to the message.
+     * @return true if the data was encrypted
+     */
+    public static boolean encryptAttachment(PersonalKey myKey, OutMessage message,
+            InputStream in, OutputStream out) throws IOException {
+        return new Encryptor(myKey, message).encryptAttachment(in, out);
+    }
 }
@@ -21,12 +21,15 @@ package org.kontalk.crypto;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -72,7 +75,7 @@ import org.kontalk.util.XMPPParserUtils;
 final class Decryptor {
     private static final Logger LOGGER = Logger.getLogger(Decryptor.class.getName());
 
-    private static class DecryptionResult {
+    static class DecryptionResult {
         final EnumSet<Coder.Error> errors = EnumSet.noneOf(Coder.Error.class);
         Coder.Signing signing = Coder.Signing.UNKNOWN;
     }
@@ -153,21 +156,52 @@ final class Decryptor {
         File outFile = MediaUtils.nonExistingFileForPath(inPath.getParent().resolve(outName));
 
         // decrypt
+        File inFile = inPath.toFile();
+        try (InputStream encryptedIn = Channels.newInputStream(
+                FileChannel.open(inPath, StandardOpenOption.READ))) {
+            boolean succ = decryptAttachment(attachment, mMyKey, sender, encryptedIn, outFile,
+                    Optional.empty());
+            if (!succ)
+                return;
+        } catch (IOException ex){
+            LOGGER.log(Level.WARNING, "can't decrypt attachment", ex);
+            attachment.setErrors(EnumSet.of(Coder.Error.UNKNOWN_ERROR));
+            return;
+        }
+
+        boolean succ = inFile.delete();
+        if (!succ) {
+            LOGGER.warning("can't delete obsolete decrypted attachment file");
+        }
+    }
+
+    /**
+     * Decrypt and verify attachment data while reading it from the input
+     * stream and write the plain data to the output file.
+     * @param digest updated with the plain data, if present
+     * @return true if the data was decrypted
+     * @throws IOException if the data can't be read or written
+     */
+    static boolean decryptAttachment(InAttachment attachment, PersonalKey mMyKey, Contact sender,
+            InputStream encryptedIn, File outFile, Optional<MessageDigest> digest)
+            throws IOException {
         // if sender signing key not found -> can decrypt but not verify
         PGPUtils.PGPCoderKey senderKey = Coder.contactkey(sender).orElse(null);
         DecryptionResult decResult;
-        File inFile = inPath.toFile();
-        try (FileInputStream encryptedIn = new FileInputStream(inFile);
-                FileOutputStream plainOut = new FileOutputStream(outFile)) {
+        try (OutputStream fileOut = Channels.newOutputStream(FileChannel.open(outFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+                OutputStream plainOut = digest.isPresent() ?
+                        new DigestOutputStream(fileOut, digest.get()) :
+                        fileOut) {
             decResult = decryptAndVerify(encryptedIn,
                     plainOut,
                     mMyKey.getPrivateEncryptionKey(),
                     senderKey != null ? Optional.of(senderKey.signKey) :
                             Optional.empty());
-        } catch (IOException | PGPException ex){
+        } catch (PGPException ex){
             LOGGER.log(Level.WARNING, "can't decrypt attachment", ex);
             attachment.setErrors(EnumSet.of(Coder.Error.UNKNOWN_ERROR));
-            return;
+            return false;
         }
         attachment.setErrors(decResult.errors);
         attachment.setSigning(decResult.signing);
@@ -177,23 +211,20 @@ final class Decryptor {
         // security check for correct extension
         String ext = MediaUtils.extensionForMIME(MediaUtils.mimeForFile(outPath));
         if (!ext.equals(FilenameUtils.getExtension(outFile.getName()))) {
-            boolean succ = !MediaUtils.renameFile(outPath, outFile.getName() + "." + ext)
-                    .toString().isEmpty();
-            if (succ)
+            Path renamed = MediaUtils.renameFile(outPath, outFile.getName() + "." + ext);
+            if (!renamed.toString().isEmpty()) {
+                outPath = renamed;
                 LOGGER.info("corrected extension: " + ext);
+            }
         }
 
         attachment.setDecryptedFile(outPath.toFile().getName());
         LOGGER.info("success, decrypted file: "+outPath);
-
-        boolean succ = inFile.delete();
-        if (!succ) {
-            LOGGER.warning("can't delete obsolete decrypted attachment file");
-        }
+        return true;
     }
 
     /** Decrypt, verify and write input stream data to output stream. */
-    private static DecryptionResult decryptAndVerify(
+    static DecryptionResult decryptAndVerify(
             InputStream encryptedInput, OutputStream plainOutput,
             PGPPrivateKey myKey, Optional<PGPPublicKey> senderSigningKey)
             throws PGPException, IOException {
@@ -282,11 +313,16 @@ final class Decryptor {
 
         PGPLiteralData ld = (PGPLiteralData) object;
         InputStream unc = ld.getInputStream();
-        int ch;
-        while ((ch = unc.read()) >= 0) {
-            plainOutput.write(ch);
-            if (ops != null)
-                ops.update((byte) ch);
+        byte[] buf = BufferPool.take();
+        try {
+            int len;
+            while ((len = unc.read(buf)) >= 0) {
+                plainOutput.write(buf, 0, len);
+                if (ops != null)
+                    ops.update(buf, 0, len);
+            }
+        } finally {
+            BufferPool.release(buf);
         }
 
         if (ops != null) {
@@ -18,15 +18,17 @@
 
 package org.kontalk.crypto;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
 import java.util.Date;
 import java.util.EnumSet;
@@ -37,6 +39,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import org.apache.commons.io.IOUtils;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.openpgp.PGPCompressedData;
 import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
@@ -45,6 +48,8 @@ import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
@@ -52,10 +57,12 @@ import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
 import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
 import org.kontalk.model.Contact;
+import org.kontalk.model.message.MessageContent.OutAttachment;
 import org.kontalk.model.message.OutMessage;
 import org.kontalk.model.message.Transmission;
 import org.kontalk.util.CPIMMessage;
 import org.kontalk.util.EncodingUtils;
+import org.kontalk.util.MediaUtils;
 
 /**
  *
@@ -64,8 +71,10 @@ import org.kontalk.util.EncodingUtils;
 final class Encryptor {
     private static final Logger LOGGER = Logger.getLogger(Encryptor.class.getName());
 
-    // should always be a power of 2
-    private static final int BUFFER_SIZE = 1 << 8;
+    /** Size of the data sample for the compression decision. */
+    private static final int SAMPLE_SIZE = 4096;
+    /** Entropy in bits per byte above which data is not compressed. */
+    private static final double MAX_COMPRESS_ENTROPY = 7.5;
 
     private final PersonalKey myKey;
     private final OutMessage message;
@@ -125,7 +134,7 @@ final class Encryptor {
         ByteArrayInputStream in = new ByteArrayInputStream(plainText);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            encryptAndSign(in, out, myKey, receiverKeys);
+            encryptAndSign(in, out, myKey, receiverKeys, true);
         } catch(IOException | PGPException ex) {
             LOGGER.log(Level.WARNING, "can't encrypt data", ex);
             message.setSecurityErrors(EnumSet.of(Coder.Error.UNKNOWN_ERROR));
@@ -148,9 +157,11 @@ final class Encryptor {
             return Optional.empty();
         }
 
-        try (FileInputStream in = new FileInputStream(file);
-                FileOutputStream out = new FileOutputStream(tempFile)) {
-            encryptAndSign(in, out, myKey, receiverKeys);
+        try (InputStream in = Channels.newInputStream(
+                        FileChannel.open(file.toPath(), StandardOpenOption.READ));
+                OutputStream out = Channels.newOutputStream(
+                        FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE))) {
+            this.encryptAttachment(in, out, receiverKeys);
         } catch (IOException | PGPException ex) {
             LOGGER.log(Level.WARNING, "can't encrypt attachment", ex);
             return Optional.empty();
@@ -160,6 +171,67 @@ final class Encryptor {
         return Optional.of(tempFile);
     }
 
+    /**
+     * Encrypt attachment data while it is written to the output stream.
+     * Streams are not closed.
+     */
+    boolean encryptAttachment(InputStream in, OutputStream out) throws IOException {
+        List<PGPUtils.PGPCoderKey> receiverKeys = this.loadKeysOrNull();
+        if (receiverKeys == null)
+            return false;
+
+        try {
+            this.encryptAttachment(in, out, receiverKeys);
+        } catch (PGPException ex) {
+            LOGGER.log(Level.WARNING, "can't encrypt attachment", ex);
+            return false;
+        }
+
+        LOGGER.info("attachment encryption successful");
+        return true;
+    }
+
+    private void encryptAttachment(InputStream in, OutputStream out,
+            List<PGPUtils.PGPCoderKey> receiverKeys) throws IOException, PGPException {
+        BufferedInputStream bufIn = new BufferedInputStream(in, SAMPLE_SIZE);
+        String mime = message.getContent().getOutAttachment()
+                .map(OutAttachment::getMimeType).orElse("");
+        // known MIME type first, else check data sample
+        boolean compress = !MediaUtils.isCompressed(mime) &&
+                (MediaUtils.isCompressible(mime) || !isHighEntropy(bufIn));
+        LOGGER.config("compress="+compress+", mime="+mime);
+
+        encryptAndSign(bufIn, out, myKey, receiverKeys, compress);
+    }
+
+    /**
+     * Guess if data is already compressed or encrypted from the byte entropy
+     * of a sample at the stream start. The stream position is not changed.
+     */
+    private static boolean isHighEntropy(BufferedInputStream in) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        in.mark(SAMPLE_SIZE);
+        int len = IOUtils.read(in, sample);
+        in.reset();
+        return len > 0 && entropy(sample, len) > MAX_COMPRESS_ENTROPY;
+    }
+
+    /** Shannon entropy of the data in bits per byte. */
+    static double entropy(byte[] data, int len) {
+        int[] counts = new int[256];
+        for (int i = 0; i < len; i++)
+            counts[data[i] & 0xFF]++;
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0)
+                continue;
+            double p = count / (double) len;
+            entropy -= p * Math.log(p) / Math.log(2);
+        }
+        return entropy;
+    }
+
     private List<PGPUtils.PGPCoderKey> loadKeysOrNull() {
         List<Contact> contacts = message.getTransmissions().stream()
                 .map(Transmission::getContact)
@@ -176,65 +248,99 @@ final class Encryptor {
 
     /**
      * Encrypt, sign and write input stream data to output stream.
-     * Input and output stream are closed.
+     * Input and output stream are not closed.
      */
     private static void encryptAndSign(
             InputStream plainInput, OutputStream encryptedOutput,
-            PersonalKey myKey, List<PGPUtils.PGPCoderKey> receiverKeys)
+            PersonalKey myKey, List<PGPUtils.PGPCoderKey> receiverKeys, boolean compress)
             throws IOException, PGPException {
+        encryptAndSign(plainInput, encryptedOutput,
+                myKey.getPrivateSigningKey(), myKey.getSigningAlgorithm(), myKey.getUserId(),
+                receiverKeys.stream().map(key -> key.encryptKey).collect(Collectors.toList()),
+                BufferPool.BUFFER_SIZE, compress);
+    }
 
-        // setup data encryptor & generator
-        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-        encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
-
-        // add public key recipients
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        receiverKeys.forEach(key ->
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(key.encryptKey)));
-
-        OutputStream encryptedOut = encGen.open(encryptedOutput, new byte[BUFFER_SIZE]);
-
-        // setup compressed data generator
-        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
-
-        // setup signature generator
-        int algo = myKey.getSigningAlgorithm();
-        PGPSignatureGenerator sigGen = new PGPSignatureGenerator(
-                new BcPGPContentSignerBuilder(algo, HashAlgorithmTags.SHA256));
-        sigGen.init(PGPSignature.BINARY_DOCUMENT, myKey.getPrivateSigningKey());
-
-        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, myKey.getUserId());
-        sigGen.setUnhashedSubpackets(spGen.generate());
-
-        sigGen.generateOnePassVersion(false).encode(compressedOut);
-
-        // Initialize literal data generator
-        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-        OutputStream literalOut = literalGen.open(
-            compressedOut,
-            PGPLiteralData.BINARY,
-            "",
-            new Date(),
-            new byte[BUFFER_SIZE]);
-
-        // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len;
-        while ((len = plainInput.read(buf)) > 0) {
-            literalOut.write(buf, 0, len);
-            sigGen.update(buf, 0, len);
-        }
+    /**
+     * Encrypt, sign and write input stream data to output stream using
+     * buffers of the given size. Buffers of the pool size are reused.
+     * Data is only compressed if requested.
+     * Input and output stream are not closed.
+     */
+    static void encryptAndSign(
+            InputStream plainInput, OutputStream encryptedOutput,
+            PGPPrivateKey signKey, int signAlgo, String userID,
+            List<PGPPublicKey> encryptKeys, int bufferSize, boolean compress)
+            throws IOException, PGPException {
 
-        literalGen.close();
+        byte[] encBuf = buffer(bufferSize);
+        byte[] compBuf = buffer(bufferSize);
+        byte[] literalBuf = buffer(bufferSize);
+        byte[] buf = buffer(bufferSize);
+        try {
+            // setup data encryptor & generator
+            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
+            encryptor.setWithIntegrityPacket(true);
+            encryptor.setSecureRandom(new SecureRandom());
+
+            // add public key recipients
+            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
+            encryptKeys.forEach(key ->
+                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(key)));
+
+            OutputStream encryptedOut = encGen.open(encryptedOutput, encBuf);
+
+            // setup compressed data generator
+            PGPCompressedDataGenerator compGen = compress ?
+                    new PGPCompressedDataGenerator(PGPCompressedData.ZIP) :
+                    null;
+            OutputStream compressedOut = compGen != null ?
+                    compGen.open(encryptedOut, compBuf) :
+                    encryptedOut;
+
+            // setup signature generator
+            PGPSignatureGenerator sigGen = new PGPSignatureGenerator(
+                    new BcPGPContentSignerBuilder(signAlgo, HashAlgorithmTags.SHA256));
+            sigGen.init(PGPSignature.BINARY_DOCUMENT, signKey);
+
+            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+            spGen.setSignerUserID(false, userID);
+            sigGen.setUnhashedSubpackets(spGen.generate());
+
+            sigGen.generateOnePassVersion(false).encode(compressedOut);
+
+            // Initialize literal data generator
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            OutputStream literalOut = literalGen.open(
+                compressedOut,
+                PGPLiteralData.BINARY,
+                "",
+                new Date(),
+                literalBuf);
+
+            // read the "in" stream, compress, encrypt and write to the "out" stream
+            // in chunks of the buffer size
+            int len;
+            while ((len = plainInput.read(buf)) > 0) {
+                literalOut.write(buf, 0, len);
+                sigGen.update(buf, 0, len);
+            }
+
+            literalGen.close();
+
+            // generate the signature, compress, encrypt and write to the "out" stream
+            sigGen.generate().encode(compressedOut);
+            if (compGen != null)
+                compGen.close();
+            encGen.close();
+        } finally {
+            BufferPool.release(encBuf);
+            BufferPool.release(compBuf);
+            BufferPool.release(literalBuf);
+            BufferPool.release(buf);
+        }
+    }
 
-        // generate the signature, compress, encrypt and write to the "out" stream
-        sigGen.generate().encode(compressedOut);
-        compGen.close();
-        encGen.close();
+    private static byte[] buffer(int size) {
+        return size == BufferPool.BUFFER_SIZE ? BufferPool.take() : new byte[size];
     }
 }
@@ -84,6 +84,9 @@ public final class PGPUtils {
     /** The fingerprint calculator to use whenever it is needed. */
     static final KeyFingerPrintCalculator FP_CALC = new BcKeyFingerprintCalculator();
 
+    /** Maximum number of bytes read when checking a stream for encrypted data. */
+    private static final int PEEK_LIMIT = 64 * 1024;
+
     /** Singleton for converting a PGP key to a JCA key. */
     private static JcaPGPKeyConverter sKeyConverter;
 
@@ -333,6 +336,18 @@ public final class PGPUtils {
 
     public static boolean isEncryptedFile(Path file) {
         try (FileInputStream input = new FileInputStream(file.toFile())) {
+            return isEncryptedData(input);
+        } catch(IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Check if the stream starts with PGP encrypted data. Only the first
+     * packets are read.
+     */
+    private static boolean isEncryptedData(InputStream input) {
+        try {
             PGPObjectFactory factory = new PGPObjectFactory(input, FP_CALC);
             Object o = factory.nextObject();
             return o instanceof PGPEncryptedDataList || o instanceof PGPMarker;
@@ -341,4 +356,16 @@ public final class PGPUtils {
             return false;
         }
     }
+
+    /**
+     * Check if the stream starts with PGP encrypted data without consuming
+     * it. The stream must support mark and reset.
+     * @throws IOException if the stream can't be reset
+     */
+    public static boolean peekEncryptedData(InputStream input) throws IOException {
+        input.mark(PEEK_LIMIT);
+        boolean encrypted = isEncryptedData(input);
+        input.reset();
+        return encrypted;
+    }
 }
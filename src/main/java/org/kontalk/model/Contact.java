@@ -31,6 +31,7 @@ import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.kontalk.crypto.Coder;
 import org.kontalk.misc.JID;
 import org.kontalk.misc.Searchable;
 import org.kontalk.persistence.Database;
@@ -263,6 +264,7 @@ public final class Contact extends Observable implements Searchable {
         if (!mKey.isEmpty())
             LOGGER.info("overwriting public key of contact: "+this);
 
+        Coder.invalidateKey(mFingerprint);
         mKey = EncodingUtils.bytesToBase64(rawKey);
         mFingerprint = fingerprint.toLowerCase();
         this.save();
@@ -364,6 +366,7 @@ public final class Contact extends Observable implements Searchable {
         mStatus = "";
         mLastSeen = null;
         mEncrypted = false;
+        Coder.invalidateKey(mFingerprint);
         mKey = "";
         mFingerprint = "";
         if (mAvatar != null)
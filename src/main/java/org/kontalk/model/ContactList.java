@@ -46,16 +46,22 @@ public final class ContactList extends Observable {
 
     private final Map<JID, Contact> mJIDMap =
             Collections.synchronizedMap(new HashMap<JID, Contact>());
+    // all contacts by database ID, including deleted
+    private final Map<Integer, Contact> mIDMap =
+            Collections.synchronizedMap(new HashMap<Integer, Contact>());
 
     ContactList() {}
 
+    /**
+     * Load all contacts from database.
+     * Return a (live) view of all contacts by ID, including deleted contacts.
+     */
     Map<Integer, Contact> load() {
         assert mJIDMap.isEmpty();
 
-        Map<Integer, Contact> contactMap = new HashMap<>();
-
         Database db = Model.database();
-        try (ResultSet resultSet = db.execSelectAll(Contact.TABLE)) {
+        try (Database.Query query = db.execSelectAll(Contact.TABLE)) {
+            ResultSet resultSet = query.resultSet();
             while (resultSet.next()) {
                 Contact contact = Contact.load(resultSet);
 
@@ -67,14 +73,14 @@ public final class ContactList extends Observable {
                 if (!contact.isDeleted())
                     mJIDMap.put(jid, contact);
 
-                contactMap.put(contact.getID(), contact);
+                mIDMap.put(contact.getID(), contact);
             }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load contacts from db", ex);
         }
         this.changed(null);
 
-        return contactMap;
+        return Collections.unmodifiableMap(mIDMap);
     }
 
     /** Create and add a new contact. */
@@ -89,6 +95,7 @@ public final class ContactList extends Observable {
             return Optional.empty();
 
         mJIDMap.put(newContact.getJID(), newContact);
+        mIDMap.put(newContact.getID(), newContact);
 
         this.changed(ViewChange.MODIFIED);
         return Optional.of(newContact);
@@ -19,7 +19,9 @@
 package org.kontalk.model;
 
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -28,6 +30,7 @@ import org.kontalk.misc.JID;
 import org.kontalk.model.chat.Chat;
 import org.kontalk.model.chat.ChatList;
 import org.kontalk.model.message.InMessage;
+import org.kontalk.model.message.KonMessage;
 import org.kontalk.model.message.MessageContent;
 import org.kontalk.model.message.OutMessage;
 import org.kontalk.model.message.ProtoMessage;
@@ -42,6 +45,9 @@ import org.kontalk.util.ClientUtils;
 public final class Model {
     private static final Logger LOGGER = Logger.getLogger(Model.class.getName());
 
+    /** Maximum number of search results for full-text message search. */
+    private static final int MAX_SEARCH_HITS = 1000;
+
     private static Model INSTANCE = null;
     private static Path APP_DIR;
     private static Database DATABASE;
@@ -130,6 +136,27 @@ public final class Model {
         return Optional.of(newMessage);
     }
 
+    /**
+     * Full-text search in all messages.
+     * @return IDs of matching messages by chat
+     */
+    public Map<Chat, List<Integer>> searchMessages(String search) {
+        Map<Chat, List<Integer>> hits = new LinkedHashMap<>();
+        KonMessage.search(DATABASE, search, -1, MAX_SEARCH_HITS).forEach(
+                (chatID, messageIDs) -> mChatList.get(chatID).ifPresent(
+                        chat -> hits.put(chat, messageIDs)));
+        return hits;
+    }
+
+    /**
+     * Full-text search in the messages of one chat.
+     * @return IDs of matching messages, best matching first
+     */
+    public List<Integer> searchMessages(Chat chat, String search) {
+        return KonMessage.search(DATABASE, search, chat.getID(), MAX_SEARCH_HITS)
+                .getOrDefault(chat.getID(), Collections.emptyList());
+    }
+
     public static Path appDir() {
         if (APP_DIR == null)
             throw new IllegalStateException("model not set up");
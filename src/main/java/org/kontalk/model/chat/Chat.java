@@ -22,6 +22,7 @@ import java.awt.Color;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -62,6 +63,7 @@ public abstract class Chat extends Observable implements Observer, Searchable {
     public static final String COL_SUBJ = "subject";
     public static final String COL_READ = "read";
     public static final String COL_VIEW_SET = "view_settings";
+    public static final String COL_UNREAD = "unread";
     public static final String SCHEMA = "( " +
             Database.SQL_ID +
             // optional XMPP chat ID
@@ -73,29 +75,33 @@ public abstract class Chat extends Observable implements Observer, Searchable {
             // view settings in JSON format
             COL_VIEW_SET+" TEXT NOT NULL, " +
             // optional group id in JSON format
-            COL_GD+" TEXT " +
+            COL_GD+" TEXT, " +
+            // number of unread messages
+            COL_UNREAD+" INTEGER NOT NULL DEFAULT 0" +
             ")";
 
     final int mID;
     private final ChatMessages mMessages;
 
-    private boolean mRead;
+    // number of incoming messages since chat was read, guarded by this
+    private int mUnread;
     private boolean mDeleted = false;
 
     private ViewSettings mViewSettings;
 
     Chat(String xmppID, String subject, GroupMetaData gData) {
-        mMessages = new ChatMessages();
-        mRead = true;
+        mMessages = new ChatMessages(this);
+        mUnread = 0;
         mViewSettings = ViewSettings.createDefault();
 
         // insert
         List<Object> values = Arrays.asList(
                 Database.setString(xmppID),
                 Database.setString(subject),
-                mRead,
+                true,
                 mViewSettings.toJSONString(),
-                Database.setString(gData == null ? "" : gData.toJSON()));
+                Database.setString(gData == null ? "" : gData.toJSON()),
+                mUnread);
         mID = Model.database().execInsert(TABLE, values);
         if (mID < 1) {
             LOGGER.warning("could not insert chat");
@@ -105,13 +111,13 @@ public abstract class Chat extends Observable implements Observer, Searchable {
     // used when loading from database
     Chat(int id, boolean read, String jsonViewSettings) {
         mID = id;
-        mMessages = new ChatMessages();
-        mRead = read;
+        mMessages = new ChatMessages(this);
+        mUnread = read ? 0 : 1;
         mViewSettings = new ViewSettings(jsonViewSettings);
     }
 
     private void loadMessages(Database db, Map<Integer, Contact> contactMap) {
-        mMessages.load(db, this, contactMap);
+        mMessages.load(db, contactMap);
     }
 
     public ChatMessages getMessages() {
@@ -123,8 +129,10 @@ public abstract class Chat extends Observable implements Observer, Searchable {
 
         boolean added = mMessages.add(message);
         if (added) {
-            if (message.isInMessage() && mRead) {
-                mRead = false;
+            if (message.isInMessage()) {
+                synchronized(this) {
+                    mUnread++;
+                }
                 this.save();
                 this.changed(ViewChange.READ);
             }
@@ -137,15 +145,21 @@ public abstract class Chat extends Observable implements Observer, Searchable {
         return mID;
     }
 
-    public boolean isRead() {
-        return mRead;
+    public synchronized boolean isRead() {
+        return mUnread == 0;
     }
 
-    public void setRead() {
-        if (mRead)
-            return;
+    /** Number of incoming messages since this chat was read. */
+    public synchronized int getUnreadCount() {
+        return mUnread;
+    }
 
-        mRead = true;
+    public void setRead() {
+        synchronized(this) {
+            if (mUnread == 0)
+                return;
+            mUnread = 0;
+        }
         this.save();
         this.changed(ViewChange.READ);
     }
@@ -206,7 +220,10 @@ public abstract class Chat extends Observable implements Observer, Searchable {
     void save(String subject) {
         Map<String, Object> set = new HashMap<>();
         set.put(COL_SUBJ, Database.setString(subject));
-        set.put(COL_READ, mRead);
+        synchronized(this) {
+            set.put(COL_READ, mUnread == 0);
+            set.put(COL_UNREAD, mUnread);
+        }
         set.put(COL_VIEW_SET, mViewSettings.toJSONString());
 
         Database db = Model.database();
@@ -214,13 +231,14 @@ public abstract class Chat extends Observable implements Observer, Searchable {
     }
 
     void delete() {
+        Database db = Model.database();
+
         // messages
-        boolean succ = mMessages.getAll().stream().allMatch(KonMessage::delete);
+        boolean succ = mMessages.delete(db);
         if (!succ)
             return;
 
         // members
-        Database db = Model.database();
         succ = this.getAllMembers().stream().allMatch(m -> m.delete(db));
         if (!succ)
             return;
@@ -259,7 +277,8 @@ public abstract class Chat extends Observable implements Observer, Searchable {
             return this.getSubject().toLowerCase().contains(search);
     }
 
-    static Optional<Chat> load(Database db, ResultSet rs, Map<Integer, Contact> contactMap)
+    static Optional<Chat> load(Database db, ResultSet rs, Map<Integer, List<Member>> memberMap,
+            Map<Integer, Contact> contactMap)
             throws SQLException {
         int id = rs.getInt("_id");
 
@@ -271,7 +290,7 @@ public abstract class Chat extends Observable implements Observer, Searchable {
         String xmppID = Database.getString(rs, Chat.COL_XMPPID);
 
         // get members of chat
-        List<Member> members = Member.load(db, id, contactMap);
+        List<Member> members = memberMap.getOrDefault(id, Collections.emptyList());
 
         String subject = Database.getString(rs, Chat.COL_SUBJ);
 
@@ -291,6 +310,10 @@ public abstract class Chat extends Observable implements Observer, Searchable {
             chat = new SingleChat(id, members.get(0), xmppID, read, jsonViewSettings);
         }
 
+        if (!read)
+            // unknown before database version 9
+            chat.mUnread = Math.max(1, rs.getInt(Chat.COL_UNREAD));
+
         chat.loadMessages(db, contactMap);
         return Optional.of(chat);
     }
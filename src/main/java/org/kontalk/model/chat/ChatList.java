@@ -25,10 +25,16 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Optional;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kontalk.model.Contact;
@@ -37,6 +43,14 @@ import org.kontalk.persistence.Database;
 
 /**
  * The global list of all chats.
+ *
+ * Chats are indexed by ID, by contact and thread ID (single chats) and by
+ * group data (group chats); these keys never change for a chat.
+ *
+ * The number of unread chats and messages is updated on every change of a
+ * chat. Observers are notified about changes of it at most once per
+ * UNREAD_DELAY.
+ *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
 public final class ChatList extends Observable implements Observer, Iterable<Chat> {
@@ -46,26 +60,53 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
         MODIFIED, UNREAD
     }
 
+    /** Delay for coalescing unread changes in milliseconds. */
+    private static final int UNREAD_DELAY = 100;
+
     private final Set<Chat> mChats = Collections.synchronizedSet(new HashSet<Chat>());
 
-    private boolean mUnread = false;
+    private final Map<Integer, Chat> mIDMap = new ConcurrentHashMap<>();
+    private final Map<SingleKey, SingleChat> mSingleMap = new ConcurrentHashMap<>();
+    private final Map<GroupMetaData, GroupChat> mGroupMap = new ConcurrentHashMap<>();
+
+    // last known unread count by chat ID
+    private final Map<Integer, Integer> mUnreadMap = new ConcurrentHashMap<>();
+    private final AtomicInteger mUnreadChats = new AtomicInteger();
+    private final AtomicInteger mUnreadMessages = new AtomicInteger();
+    private final AtomicBoolean mUnreadChanged = new AtomicBoolean();
+    private final Timer mUnreadTimer = new Timer("Unread Notifier", true);
+
+    private Map<Integer, Contact> mContactMap = Collections.emptyMap();
 
     public void load(Map<Integer, Contact> contactMap) {
         assert mChats.isEmpty();
 
+        mContactMap = contactMap;
+
+        long start = System.currentTimeMillis();
+
         Database db = Model.database();
-        try (ResultSet chatRS = db.execSelectAll(Chat.TABLE)) {
+        Map<Integer, List<Member>> memberMap = Member.loadAll(db, contactMap);
+        long membersLoaded = System.currentTimeMillis();
+
+        int messages = 0;
+        try (Database.Query query = db.execSelectAll(Chat.TABLE)) {
+            ResultSet chatRS = query.resultSet();
             while (chatRS.next()) {
-                Chat chat = Chat.load(db, chatRS, contactMap).orElse(null);
+                Chat chat = Chat.load(db, chatRS, memberMap, contactMap).orElse(null);
                 if (chat == null)
                     continue;
                 this.putSilent(chat);
-
-                mUnread |= !chat.isRead();
+                messages += chat.getMessages().size();
             }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load chats from db", ex);
         }
+        long end = System.currentTimeMillis();
+        LOGGER.info("loaded "+mChats.size()+" chats with "+messages+" messages in "
+                +(end - start)+" ms (members: "+(membersLoaded - start)
+                +" ms, chats and messages: "+(end - membersLoaded)+" ms)");
+
         this.changed(ViewChange.MODIFIED);
     }
 
@@ -73,26 +114,17 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
         return Collections.unmodifiableSet(mChats);
     }
 
+    public Optional<Chat> get(int id) {
+        return Optional.ofNullable(mIDMap.get(id));
+    }
+
     /** Get single chat with contact and XMPPID. */
     public Optional<SingleChat> get(Contact contact, String xmmpThreadID) {
-        synchronized(mChats) {
-            return mChats.stream()
-                    .filter(chat -> chat instanceof SingleChat)
-                    .map(chat -> (SingleChat) chat)
-                    .filter(chat -> chat.getXMPPID().equals(xmmpThreadID)
-                            && chat.getMember().getContact().equals(contact))
-                    .findFirst();
-        }
+        return Optional.ofNullable(mSingleMap.get(new SingleKey(contact, xmmpThreadID)));
     }
 
     public Optional<GroupChat> get(GroupMetaData gData) {
-        synchronized(mChats) {
-            return mChats.stream()
-                    .filter(chat -> chat instanceof GroupChat)
-                    .map(chat -> (GroupChat) chat)
-                    .filter(chat -> chat.getGroupData().equals(gData))
-                    .findFirst();
-        }
+        return Optional.ofNullable(mGroupMap.get(gData));
     }
 
     public SingleChat getOrCreate(Contact contact) {
@@ -134,7 +166,20 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
             LOGGER.warning("chat already in chat list: "+chat);
             return;
         }
+        mIDMap.put(chat.getID(), chat);
+        if (chat instanceof SingleChat) {
+            SingleChat singleChat = (SingleChat) chat;
+            mSingleMap.put(new SingleKey(singleChat.getMember().getContact(),
+                    singleChat.getXMPPID()), singleChat);
+        } else if (chat instanceof GroupChat) {
+            GroupChat groupChat = (GroupChat) chat;
+            mGroupMap.put(groupChat.getGroupData(), groupChat);
+        }
+
+        // needed for loading older messages
+        chat.getMessages().setContactMap(mContactMap);
         chat.addObserver(this);
+        this.updateUnread(chat);
     }
 
     public boolean contains(Contact contact) {
@@ -151,14 +196,29 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
             LOGGER.warning("can't delete chat, not found: "+chat);
             return;
         }
+        mIDMap.remove(chat.getID(), chat);
+        if (chat instanceof SingleChat) {
+            SingleChat singleChat = (SingleChat) chat;
+            mSingleMap.remove(new SingleKey(singleChat.getMember().getContact(),
+                    singleChat.getXMPPID()), singleChat);
+        } else if (chat instanceof GroupChat) {
+            GroupChat groupChat = (GroupChat) chat;
+            mGroupMap.remove(groupChat.getGroupData(), groupChat);
+        }
         chat.delete();
         chat.deleteObservers();
+        this.removeUnread(chat);
         this.changed(ViewChange.MODIFIED);
     }
 
     /** Return if any chat is unread. */
     public boolean isUnread() {
-        return mUnread;
+        return mUnreadChats.get() > 0;
+    }
+
+    /** Return the number of unread messages in all chats. */
+    public int getUnreadCount() {
+        return mUnreadMessages.get();
     }
 
     private void changed(ViewChange change) {
@@ -171,24 +231,75 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
         if (arg != Chat.ViewChange.READ || !(o instanceof Chat))
             return;
 
-        boolean unread = !((Chat) o).isRead();
-        if (mUnread == unread)
+        this.updateUnread((Chat) o);
+    }
+
+    private void updateUnread(Chat chat) {
+        // atomic for chat, reading the current count inside
+        mUnreadMap.compute(chat.getID(), (id, oldCount) -> {
+            int count = chat.getUnreadCount();
+            this.addUnread(oldCount == null ? 0 : oldCount, count);
+            return count;
+        });
+    }
+
+    private void removeUnread(Chat chat) {
+        Integer oldCount = mUnreadMap.remove(chat.getID());
+        if (oldCount != null)
+            this.addUnread(oldCount, 0);
+    }
+
+    private void addUnread(int oldCount, int count) {
+        if (oldCount == count)
             return;
 
-        if (!unread) {
-            // one chat was read, are there still any unread chats?
-            synchronized(mChats) {
-                if (mChats.stream().anyMatch(chat -> !chat.isRead()))
-                    return;
-            }
-        }
+        mUnreadMessages.addAndGet(count - oldCount);
+        if (oldCount == 0)
+            mUnreadChats.incrementAndGet();
+        else if (count == 0)
+            mUnreadChats.decrementAndGet();
 
-        mUnread = !mUnread;
-        this.changed(ViewChange.UNREAD);
+        // one notification for all changes within delay
+        if (mUnreadChanged.compareAndSet(false, true)) {
+            mUnreadTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    mUnreadChanged.set(false);
+                    ChatList.this.changed(ViewChange.UNREAD);
+                }
+            }, UNREAD_DELAY);
+        }
     }
 
     @Override
     public Iterator<Chat> iterator() {
         return mChats.iterator();
     }
+
+    private static final class SingleKey {
+        final int contactID;
+        final String xmppThreadID;
+
+        SingleKey(Contact contact, String xmppThreadID) {
+            this.contactID = contact.getID();
+            this.xmppThreadID = xmppThreadID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+
+            if (!(o instanceof SingleKey))
+                return false;
+
+            SingleKey oKey = (SingleKey) o;
+            return contactID == oKey.contactID && xmppThreadID.equals(oKey.xmppThreadID);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(contactID, xmppThreadID);
+        }
+    }
 }
@@ -18,117 +18,310 @@
 
 package org.kontalk.model.chat;
 
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.Optional;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import org.kontalk.model.Contact;
+import org.kontalk.model.Model;
 import org.kontalk.model.message.KonMessage;
 import org.kontalk.model.message.OutMessage;
+import org.kontalk.model.message.Transmission;
 import org.kontalk.persistence.Database;
+import org.kontalk.system.AttachmentStore;
 
 /**
- * All messages of a chat.
+ * Messages of a chat.
+ *
+ * Only a window of the newest messages is held in memory. Older messages are
+ * loaded page by page from the database on request (using the creation date
+ * and ID of the oldest loaded message as cursor) and can be evicted again.
+ * Pending messages are always in memory.
+ *
+ * Thread-safe: messages are held in concurrent collections, readers get
+ * weakly consistent views and never block. Only paging is synchronized.
  *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
-public final class ChatMessages {
+public final class ChatMessages implements Observer {
     private static final Logger LOGGER = Logger.getLogger(ChatMessages.class.getName());
 
+    /** Number of messages loaded on startup and with every older page. */
+    public static final int PAGE_SIZE = 50;
+
+    private static final String ORDER_NEWEST_FIRST =
+            KonMessage.COL_DATE + " DESC, _id DESC";
+
     private static final Comparator<KonMessage> MESSAGE_COMPARATOR =
             (KonMessage o1, KonMessage o2) -> {
                 int dateOrder = o1.getDate().compareTo(o2.getDate());
                 return dateOrder != 0 ? dateOrder : Integer.compare(o1.getID(), o2.getID());
             };
 
-    // comparator inconsistent with .equals(); using one set for ordering...
+    private final Chat mChat;
+
+    // comparator inconsistent with .equals(); one set for ordering (one
+    // element per database row)...
     private final NavigableSet<KonMessage> mSortedSet =
-        Collections.synchronizedNavigableSet(new TreeSet<>(MESSAGE_COMPARATOR));
-    // ... and one set for .contains()
-    private final Set<KonMessage> mContainsSet =
-            Collections.synchronizedSet(new HashSet<>());
-
-    ChatMessages() {
-    }
-
-    void load(Database db, Chat chat, Map<Integer, Contact> contactMap) {
-        try (ResultSet messageRS = db.execSelectWhereInsecure(KonMessage.TABLE,
-                KonMessage.COL_CHAT_ID + " == " + chat.getID())) {
-            while (messageRS.next()) {
-                KonMessage message = KonMessage.load(messageRS, chat, contactMap);
-                if (message.getTransmissions().isEmpty())
-                    // ignore broken message
-                    continue;
-                this.addSilent(message);
-            }
-        } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't load messages from db", ex);
-        }
+            new ConcurrentSkipListSet<>(MESSAGE_COMPARATOR);
+    // ... and one identity index for .contains()
+    private final Set<KonMessage> mContainsSet = ConcurrentHashMap.newKeySet();
+
+    // newest outgoing message by XMPP ID, for receipts
+    private final Map<String, OutMessage> mXMPPIDMap = new ConcurrentHashMap<>();
+    // outgoing messages with status "PENDING", updated on status change
+    private final NavigableSet<OutMessage> mPending =
+            new ConcurrentSkipListSet<>(MESSAGE_COMPARATOR);
+
+    private volatile Map<Integer, Contact> mContactMap = Collections.emptyMap();
+
+    // oldest message of the continuous window of loaded messages, used as
+    // paging cursor; null if no message was loaded yet
+    private volatile KonMessage mOldest = null;
+    // true if there are no older messages in the database
+    private volatile boolean mAllLoaded = true;
+
+    ChatMessages(Chat chat) {
+        mChat = chat;
+    }
+
+    /** Load the newest page of messages and all pending messages. */
+    void load(Database db, Map<Integer, Contact> contactMap) {
+        mContactMap = contactMap;
+        mAllLoaded = false;
+        this.loadOlder(db);
+
+        this.select(db,
+                KonMessage.COL_CHAT_ID + " == ? AND " + KonMessage.COL_STATUS + " == ?",
+                Arrays.asList(mChat.getID(), KonMessage.Status.PENDING),
+                -1)
+                .orElse(Collections.emptyList())
+                .forEach(this::addOrGet);
+    }
+
+    void setContactMap(Map<Integer, Contact> contactMap) {
+        mContactMap = contactMap;
     }
 
     /**
      * Add message to chat without notifying other components.
      */
     boolean add(KonMessage message) {
-        return this.addSilent(message);
+        boolean added = this.addSilent(message);
+        if (!added)
+            LOGGER.warning("message already in chat: " + message);
+        return added;
     }
 
     private boolean addSilent(KonMessage message) {
-        boolean added = mContainsSet.add(message);
-        if (!added) {
-            LOGGER.warning("message already in chat: " + message);
+        // identity index first: readers never see a duplicate
+        if (!mContainsSet.add(message))
+            return false;
+        if (!mSortedSet.add(message)) {
+            // same row, not equal (no XMPP ID)
+            mContainsSet.remove(message);
             return false;
         }
-        mSortedSet.add(message);
+        this.index(message);
+        message.addObserver(this);
         return true;
     }
 
+    private void index(KonMessage message) {
+        if (!(message instanceof OutMessage))
+            return;
+
+        OutMessage outMessage = (OutMessage) message;
+        if (!outMessage.getXMPPID().isEmpty()) {
+            mXMPPIDMap.merge(outMessage.getXMPPID(), outMessage,
+                    (m1, m2) -> MESSAGE_COMPARATOR.compare(m1, m2) >= 0 ? m1 : m2);
+        }
+        if (outMessage.getStatus() == KonMessage.Status.PENDING)
+            mPending.add(outMessage);
+    }
+
+    private void unindex(KonMessage message) {
+        if (!(message instanceof OutMessage))
+            return;
+
+        mXMPPIDMap.remove(message.getXMPPID(), message);
+        mPending.remove(message);
+    }
+
+    @Override
+    public void update(Observable o, Object arg) {
+        if (arg != KonMessage.ViewChange.STATUS || !(o instanceof OutMessage))
+            return;
+
+        OutMessage message = (OutMessage) o;
+        if (!mContainsSet.contains(message))
+            return;
+        if (message.getStatus() == KonMessage.Status.PENDING)
+            mPending.add(message);
+        else
+            mPending.remove(message);
+    }
+
+    /** Return if older messages than the loaded ones are in the database. */
+    public boolean hasOlder() {
+        return !mAllLoaded;
+    }
+
+    /**
+     * Load the next page of older messages from the database.
+     * @return number of new messages
+     */
+    public int loadOlder() {
+        return this.loadOlder(Model.database());
+    }
+
+    private synchronized int loadOlder(Database db) {
+        if (mAllLoaded)
+            return 0;
+
+        List<KonMessage> page = this.selectOlder(db, "", Collections.emptyList(), PAGE_SIZE)
+                .orElse(null);
+        if (page == null)
+            return 0;
+        if (page.size() < PAGE_SIZE)
+            mAllLoaded = true;
+
+        return this.addOlder(page);
+    }
+
+    /**
+     * Load all older messages down to the message with the given ID, e.g. to
+     * show a search hit.
+     * @return number of new messages
+     */
+    public synchronized int loadOlderUntil(int messageID) {
+        if (mAllLoaded)
+            return 0;
+
+        List<KonMessage> page = this.selectOlder(Model.database(),
+                " AND (" + KonMessage.COL_DATE + ", _id) >= " +
+                        "(SELECT " + KonMessage.COL_DATE + ", _id FROM " + KonMessage.TABLE +
+                        " WHERE _id == ?)",
+                Arrays.asList(messageID), -1)
+                .orElse(null);
+        return page == null ? 0 : this.addOlder(page);
+    }
+
+    private Optional<List<KonMessage>> selectOlder(Database db, String where,
+            List<Object> whereValues, int limit) {
+        String olderWhere = KonMessage.COL_CHAT_ID + " == ?";
+        List<Object> values = new ArrayList<>(Arrays.asList(mChat.getID()));
+        KonMessage oldest = mOldest;
+        if (oldest != null) {
+            // row value comparison, can use the index
+            olderWhere += " AND (" + KonMessage.COL_DATE + ", _id) < (?, ?)";
+            values.addAll(Arrays.asList(oldest.getDate(), oldest.getID()));
+        }
+        values.addAll(whereValues);
+        return this.select(db, olderWhere + where, values, limit);
+    }
+
+    private int addOlder(List<KonMessage> page) {
+        int added = 0;
+        for (KonMessage message : page) {
+            // page is sorted newest first
+            mOldest = message;
+            if (this.addOrGet(message) == message)
+                added++;
+        }
+        return added;
+    }
+
+    /**
+     * Remove all but the newest page of messages from memory. Pending
+     * messages are kept.
+     * @return true if any message was removed
+     */
+    public synchronized boolean evictOlder() {
+        boolean evicted = false;
+        int keep = PAGE_SIZE;
+        KonMessage oldest = null;
+        Iterator<KonMessage> it = mSortedSet.descendingIterator();
+        while (it.hasNext()) {
+            KonMessage message = it.next();
+            if (keep > 0) {
+                keep--;
+                oldest = message;
+                continue;
+            }
+            if (message.getStatus() == KonMessage.Status.PENDING)
+                continue;
+            it.remove();
+            mContainsSet.remove(message);
+            this.unindex(message);
+            message.deleteObserver(this);
+            evicted = true;
+        }
+        if (evicted) {
+            mOldest = oldest;
+            mAllLoaded = false;
+        }
+        return evicted;
+    }
+
     public Set<KonMessage> getAll() {
         return Collections.unmodifiableSet(mSortedSet);
     }
 
     /** Get all outgoing messages with status "PENDING" for this chat. */
     public SortedSet<OutMessage> getPending() {
-        synchronized(mSortedSet) {
-            return mSortedSet.stream()
-                    .filter(m -> m.getStatus() == KonMessage.Status.PENDING
-                            && m instanceof OutMessage)
-                    .map(m -> (OutMessage) m)
-                    .collect(Collectors.toCollection(() -> new TreeSet<>(MESSAGE_COMPARATOR)));
-        }
+        return new TreeSet<>(mPending);
     }
 
-    /** Get the newest (i.e. last received) outgoing message. */
+    /**
+     * Get the newest (i.e. last received) outgoing message.
+     * If not in memory, the message is loaded from the database.
+     */
     public Optional<OutMessage> getLast(String xmppID) {
-        synchronized(mSortedSet) {
-            return mSortedSet.descendingSet().stream()
-                    .filter(m -> m.getXMPPID().equals(xmppID) && m instanceof OutMessage)
-                    .map(m -> (OutMessage) m).findFirst();
-        }
+        Optional<OutMessage> optMessage = Optional.ofNullable(mXMPPIDMap.get(xmppID));
+        if (optMessage.isPresent() || xmppID.isEmpty())
+            return optMessage;
+
+        return this.select(Model.database(),
+                KonMessage.COL_CHAT_ID + " == ? AND " + KonMessage.COL_XMPP_ID + " == ? AND " +
+                        KonMessage.COL_STATUS + " != ?",
+                Arrays.asList(mChat.getID(), xmppID, KonMessage.Status.IN),
+                1)
+                .orElse(Collections.emptyList()).stream()
+                .map(this::addOrGet)
+                .filter(m -> m instanceof OutMessage)
+                .map(m -> (OutMessage) m)
+                .findFirst();
     }
 
     /** Get the last created message. */
     public Optional<KonMessage> getLast() {
-        return mSortedSet.isEmpty() ?
-                Optional.empty() :
-                Optional.of(mSortedSet.last());
+        // last() throws if concurrently emptied
+        Iterator<KonMessage> it = mSortedSet.descendingIterator();
+        return it.hasNext() ? Optional.of(it.next()) : Optional.empty();
     }
 
     public boolean contains(KonMessage message) {
         return mContainsSet.contains(message);
     }
 
+    /** Number of messages in memory. Not a constant-time operation. */
     public int size() {
         return mSortedSet.size();
     }
@@ -138,7 +331,75 @@ public final class ChatMessages {
     }
 
     public Optional<KonMessage> getPredecessor(KonMessage message) {
-        SortedSet<KonMessage> headSet = mSortedSet.headSet(message);
-        return headSet.isEmpty() ? Optional.empty() : Optional.of(headSet.last());
+        return Optional.ofNullable(mSortedSet.lower(message));
+    }
+
+    /** Delete all messages of this chat, including those not in memory. */
+    synchronized boolean delete(Database db) {
+        List<Object> chatID = Arrays.asList(mChat.getID());
+        String messageIDs = "SELECT _id FROM " + KonMessage.TABLE + " WHERE " +
+                KonMessage.COL_CHAT_ID + " == ?";
+        boolean succ = db.execDeleteWhere(Transmission.TABLE,
+                Transmission.COL_MESSAGE_ID + " IN (" + messageIDs + ")", chatID);
+        if (!succ)
+            return false;
+        // stored files are deleted by garbage collection
+        succ = db.execDeleteWhere(AttachmentStore.TABLE,
+                AttachmentStore.COL_MESSAGE_ID + " IN (" + messageIDs + ")", chatID);
+        if (!succ)
+            return false;
+        succ = db.execDeleteWhere(KonMessage.FTS_TABLE,
+                KonMessage.COL_CHAT_ID + " == ?", chatID);
+        if (!succ)
+            return false;
+        succ = db.execDeleteWhere(KonMessage.TABLE,
+                KonMessage.COL_CHAT_ID + " == ?", chatID);
+        if (!succ)
+            return false;
+
+        mSortedSet.forEach(m -> m.deleteObserver(this));
+        mSortedSet.clear();
+        mContainsSet.clear();
+        mXMPPIDMap.clear();
+        mPending.clear();
+        mOldest = null;
+        mAllLoaded = true;
+        return true;
+    }
+
+    /**
+     * Return the message object already in memory for the same database
+     * row or add the loaded message.
+     */
+    private KonMessage addOrGet(KonMessage loaded) {
+        KonMessage current = this.sameRowOrNull(loaded);
+        if (current != null)
+            return current;
+        if (this.addSilent(loaded))
+            return loaded;
+
+        // added concurrently
+        current = this.sameRowOrNull(loaded);
+        return current != null ? current : loaded;
+    }
+
+    private KonMessage sameRowOrNull(KonMessage message) {
+        // same date and ID: same row
+        KonMessage current = mSortedSet.ceiling(message);
+        return current != null && MESSAGE_COMPARATOR.compare(current, message) == 0 ?
+                current :
+                null;
+    }
+
+    /** Load messages matching a 'where' clause, newest first. */
+    private Optional<List<KonMessage>> select(Database db, String where, List<Object> values,
+            int limit) {
+        try {
+            return Optional.of(KonMessage.load(db, mChat, where, values,
+                    ORDER_NEWEST_FIRST, limit, mContactMap));
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't load messages from db", ex);
+            return Optional.empty();
+        }
     }
 }
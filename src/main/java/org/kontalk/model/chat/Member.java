@@ -22,8 +22,8 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -113,20 +113,14 @@ public final class Member extends ProtoMember {
             mLastActive = new Date();
     }
 
-    /** Load Members of a chat. */
-    static List<Member> load(Database db, int chatID, Map<Integer, Contact> contactMap) {
-        String where = COL_CHAT_ID + " == " + chatID;
-        ResultSet resultSet;
-        try {
-            resultSet = db.execSelectWhereInsecure(TABLE, where);
-        } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't get receiver from db", ex);
-            return Collections.emptyList();
-        }
-        List<Member> members = new ArrayList<>();
-        try {
+    /** Load members of all chats with one query, by chat ID. */
+    static Map<Integer, List<Member>> loadAll(Database db, Map<Integer, Contact> contactMap) {
+        Map<Integer, List<Member>> members = new HashMap<>();
+        try (Database.Query query = db.execSelectAll(TABLE)) {
+            ResultSet resultSet = query.resultSet();
             while (resultSet.next()) {
                 int id = resultSet.getInt("_id");
+                int chatID = resultSet.getInt(COL_CHAT_ID);
                 int contactID = resultSet.getInt(COL_CONTACT_ID);
                 int r = resultSet.getInt(COL_ROLE);
                 Role role = Role.values()[r];
@@ -136,9 +130,9 @@ public final class Member extends ProtoMember {
                     continue;
                 }
 
-                members.add(new Member(id, c, role, chatID));
+                members.computeIfAbsent(chatID, k -> new ArrayList<>())
+                        .add(new Member(id, c, role, chatID));
             }
-            resultSet.close();
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't get members", ex);
         }
@@ -86,6 +86,7 @@ public final class InMessage extends KonMessage implements DecryptMessage {
         mContent.setDecryptedContent(decryptedContent);
         mCoderStatus.setDecrypted();
         this.save();
+        this.updateSearchIndex();
         this.changed(ViewChange.CONTENT);
     }
 
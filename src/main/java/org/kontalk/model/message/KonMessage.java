@@ -20,10 +20,13 @@ package org.kontalk.model.message;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -33,6 +36,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
@@ -44,6 +48,7 @@ import org.kontalk.model.chat.Chat;
 import org.kontalk.model.message.MessageContent.Attachment;
 import org.kontalk.model.message.MessageContent.Preview;
 import org.kontalk.persistence.Database;
+import org.kontalk.system.AttachmentStore;
 import org.kontalk.util.EncodingUtils;
 
 /**
@@ -99,8 +104,8 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
             COL_DATE + " INTEGER NOT NULL, " +
             // enum, message sending status
             COL_STATUS + " INTEGER NOT NULL, " +
-            // message content in JSON format
-            COL_CONTENT + " TEXT NOT NULL, " +
+            // binary encoded, JSON text before database version 8
+            COL_CONTENT + " BLOB NOT NULL, " +
             // enum, determines if content is encrypted
             COL_ENCR_STAT + " INTEGER NOT NULL, " +
             // enum, determines if content is verified
@@ -114,6 +119,19 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
             COL_SERV_DATE + " INTEGER, " +
             "FOREIGN KEY (" + COL_CHAT_ID + ") REFERENCES " + Chat.TABLE + " (_id) " +
             ")";
+    // full-text search index of message texts, row ID is the message ID
+    public static final String FTS_TABLE = "messages_fts";
+    public static final String COL_FTS_TEXT = "text";
+    public static final String FTS_SCHEMA = "USING fts5(" +
+            COL_CHAT_ID + " UNINDEXED, " +
+            COL_FTS_TEXT +
+            ")";
+    public static final String[] INDICES = {
+            // loading messages of a chat, sorted by date
+            COL_CHAT_ID + ", " + COL_DATE,
+            // finding a message by XMPP ID (receipts)
+            COL_CHAT_ID + ", " + COL_XMPP_ID
+    };
 
     final int mID;
     private final Chat mChat;
@@ -138,7 +156,7 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
         mXMPPID = xmppID;
         mDate = new Date();
         mContent = content;
-        mContent.getAttachment().ifPresent(att -> att.addObserver(this));
+        mContent.observeAttachment(this);
 
         mServerDate = serverDate.orElse(null);
         mStatus = status;
@@ -153,9 +171,9 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
                 mXMPPID,
                 mDate,
                 mStatus,
-        // i simply don't like to save all possible content explicitly in the
-        // database, so we use JSON here
-                mContent.toJSON(),
+                // i simply don't like to save all possible content explicitly
+                // in the database, so we use one binary encoded column here
+                mContent.toBytes(),
                 mCoderStatus.getEncryption(),
                 mCoderStatus.getSigning(),
                 mCoderStatus.getErrors(),
@@ -166,6 +184,7 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
         if (mID <= 0) {
             LOGGER.log(Level.WARNING, "db, could not insert message");
         }
+        this.updateSearchIndex();
     }
 
     // used when loading from database
@@ -175,7 +194,7 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
         mXMPPID = builder.mXMPPID;
         mDate = builder.mDate;
         mContent = builder.mContent;
-        mContent.getAttachment().ifPresent(att -> att.addObserver(this));
+        mContent.observeAttachment(this);
 
         mServerDate = builder.mServerDate;
         mStatus = builder.mStatus;
@@ -265,7 +284,7 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
     void save() {
         Map<String, Object> set = new HashMap<>();
         set.put(COL_STATUS, mStatus);
-        set.put(COL_CONTENT, mContent.toJSON());
+        set.put(COL_CONTENT, mContent.toBytes());
         set.put(COL_ENCR_STAT, mCoderStatus.getEncryption());
         set.put(COL_SIGN_STAT, mCoderStatus.getSigning());
         set.put(COL_COD_ERR, mCoderStatus.getErrors());
@@ -274,6 +293,18 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
         Model.database().execUpdate(TABLE, set, mID);
     }
 
+    // text only changes on decryption, not on every save
+    void updateSearchIndex() {
+        String text = mContent.getText();
+        if (mID <= 0 || text.isEmpty())
+            return;
+
+        Map<String, Object> set = new HashMap<>();
+        set.put(COL_CHAT_ID, mChat.getID());
+        set.put(COL_FTS_TEXT, text);
+        Model.database().execReplaceText(FTS_TABLE, mID, set);
+    }
+
     public boolean delete() {
         boolean succ = this.getTransmissions().stream().allMatch(Transmission::delete);
         if (!succ)
@@ -283,7 +314,12 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
             LOGGER.warning("not in database: "+this);
             return true;
         }
-        return Model.database().execDelete(TABLE, mID);
+        Database db = Model.database();
+        // stored files are deleted by garbage collection
+        return db.execDeleteWhere(AttachmentStore.TABLE,
+                        AttachmentStore.COL_MESSAGE_ID + " == ?", Arrays.asList(mID)) &&
+                db.execDeleteWhere(FTS_TABLE, "rowid == ?", Arrays.asList(mID)) &&
+                db.execDelete(TABLE, mID);
     }
 
     void changed(ViewChange change) {
@@ -330,8 +366,41 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
                 +",codstat="+mCoderStatus+",serverr="+mServerError;
     }
 
-    public static KonMessage load(ResultSet messageRS, Chat chat,
+    /**
+     * Load messages of a chat matching a 'where' clause with parameters.
+     * Messages and their transmissions are loaded with set-based queries,
+     * not one query per message.
+     */
+    public static List<KonMessage> load(Database db, Chat chat,
+            String where, List<Object> values, String orderBy, int limit,
             Map<Integer, Contact> contactMap) throws SQLException {
+        List<KonMessage.Builder> builders = new ArrayList<>();
+        try (Database.Query query = db.execSelectWhere(TABLE, where, values, orderBy, limit)) {
+            ResultSet messageRS = query.resultSet();
+            while (messageRS.next()) {
+                builders.add(load(messageRS, chat));
+            }
+        }
+
+        Map<Integer, Set<Transmission>> tsMap = Transmission.load(db,
+                builders.stream().map(b -> b.mID).collect(Collectors.toList()),
+                contactMap);
+
+        List<KonMessage> messages = new ArrayList<>(builders.size());
+        for (KonMessage.Builder builder : builders) {
+            Set<Transmission> ts = tsMap.getOrDefault(builder.mID, Collections.emptySet());
+            if (ts.isEmpty()) {
+                // ignore broken message
+                LOGGER.warning("no transmission(s) found, messageID: "+builder.mID);
+                continue;
+            }
+            builder.transmissions(ts);
+            messages.add(builder.build());
+        }
+        return messages;
+    }
+
+    private static KonMessage.Builder load(ResultSet messageRS, Chat chat) throws SQLException {
         int id = messageRS.getInt("_id");
 
         String xmppID = Database.getString(messageRS, KonMessage.COL_XMPP_ID);
@@ -341,9 +410,8 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
         int statusIndex = messageRS.getInt(KonMessage.COL_STATUS);
         KonMessage.Status status = KonMessage.Status.values()[statusIndex];
 
-        String jsonContent = messageRS.getString(KonMessage.COL_CONTENT);
-
-        MessageContent content = MessageContent.fromJSONString(jsonContent);
+        MessageContent content = MessageContent.fromDatabase(
+                messageRS.getObject(KonMessage.COL_CONTENT));
 
         int encryptionIndex = messageRS.getInt(KonMessage.COL_ENCR_STAT);
         Coder.Encryption encryption = Coder.Encryption.values()[encryptionIndex];
@@ -365,14 +433,74 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
         Date serverDate = sDate == 0 ? null : new Date(sDate);
 
         KonMessage.Builder builder = new KonMessage.Builder(id, chat, status, date, content);
-        builder.transmissions(Transmission.load(id, contactMap));
         builder.xmppID(xmppID);
         if (serverDate != null)
             builder.serverDate(serverDate);
         builder.coderStatus(coderStatus);
         builder.serverError(serverError);
 
-        return builder.build();
+        return builder;
+    }
+
+    /**
+     * Full-text search in the text of messages.
+     * @param chatID ID of chat to search in, negative for all chats
+     * @return IDs of matching messages by chat ID, best matching first
+     */
+    public static Map<Integer, List<Integer>> search(Database db, String search,
+            int chatID, int limit) {
+        Map<Integer, List<Integer>> hits = new LinkedHashMap<>();
+        String match = Database.toMatchQuery(search);
+        if (match.isEmpty())
+            return hits;
+
+        String where = chatID < 0 ? "" : COL_CHAT_ID + " == ?";
+        List<Object> values = chatID < 0 ?
+                Collections.emptyList() :
+                Arrays.asList(chatID);
+        try (Database.Query query = db.execSearch(FTS_TABLE, match, where, values, limit)) {
+            ResultSet resultSet = query.resultSet();
+            while (resultSet.next()) {
+                hits.computeIfAbsent(resultSet.getInt(COL_CHAT_ID), k -> new ArrayList<>())
+                        .add(resultSet.getInt("rowid"));
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't search messages", ex);
+        }
+        return hits;
+    }
+
+    /** Add the text of all messages to the full-text search index. */
+    public static void indexAll(Database db) throws SQLException {
+        try (Database.Query query = db.execSelectAll(TABLE)) {
+            ResultSet resultSet = query.resultSet();
+            while (resultSet.next()) {
+                String text = MessageContent.fromDatabase(
+                        resultSet.getObject(COL_CONTENT)).getText();
+                if (text.isEmpty())
+                    continue;
+
+                Map<String, Object> set = new HashMap<>();
+                set.put(COL_CHAT_ID, resultSet.getInt(COL_CHAT_ID));
+                set.put(COL_FTS_TEXT, text);
+                db.execReplaceText(FTS_TABLE, resultSet.getInt("_id"), set);
+            }
+        }
+    }
+
+    /** Convert message content in JSON format to binary format. */
+    public static void convertContent(Database db) throws SQLException {
+        try (Database.Query query = db.execSelectWhere(TABLE,
+                "typeof(" + COL_CONTENT + ") == 'text'", Collections.emptyList())) {
+            ResultSet resultSet = query.resultSet();
+            while (resultSet.next()) {
+                MessageContent content = MessageContent.fromJSONString(
+                        resultSet.getString(COL_CONTENT));
+                Map<String, Object> set = new HashMap<>();
+                set.put(COL_CONTENT, content.toBytes());
+                db.execUpdate(TABLE, set, resultSet.getInt("_id"));
+            }
+        }
     }
 
     public static final class ServerError {
@@ -18,15 +18,23 @@
 
 package org.kontalk.model.message;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
+import java.util.Observer;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -40,6 +48,7 @@ import org.kontalk.model.Model;
 import org.kontalk.model.chat.GroupMetaData;
 import org.kontalk.model.chat.GroupMetaData.KonGroupData;
 import org.kontalk.system.AttachmentManager;
+import org.kontalk.system.AttachmentStore;
 import org.kontalk.util.EncodingUtils;
 import org.kontalk.util.MediaUtils;
 
@@ -58,16 +67,26 @@ public class MessageContent {
     // encrypted content, empty string if not present
     private String mEncryptedContent;
     // attachment (file url, path and metadata)
-    private final Attachment mAttachment;
+    private Attachment mAttachment;
     // small preview file of attachment
     private Preview mPreview;
     // group id
     private final KonGroupData mGroupData;
     // group command
-    private final GroupCommand mGroupCommand;
+    private GroupCommand mGroupCommand;
     // decrypted message content
     private MessageContent mDecryptedContent;
 
+    // parts as loaded from database, decoded on first access;
+    // null if not present or already decoded
+    private byte[] mEncryptedBytes;
+    private byte[] mAttachmentBytes;
+    private byte[] mPreviewBytes;
+    private byte[] mGroupCommandBytes;
+    private byte[] mDecryptedBytes;
+    // added to the attachment when it is decoded
+    private Observer mAttachmentObserver = null;
+
     private static final String JSON_PLAIN_TEXT = "plain_text";
     private static final String JSON_ENC_CONTENT = "encrypted_content";
     private static final String JSON_ATTACHMENT = "attachment";
@@ -75,6 +94,15 @@ public class MessageContent {
     private static final String JSON_GROUP_COMMAND = "group_command";
     private static final String JSON_DEC_CONTENT = "decrypted_content";
 
+    // binary format version, first byte of encoded content
+    private static final int BIN_VERSION = 2;
+    // flags for optional parts in binary format
+    private static final int BIN_ATTACHMENT = 1;
+    private static final int BIN_PREVIEW = 1 << 1;
+    private static final int BIN_GROUP_COMMAND = 1 << 2;
+    private static final int BIN_DEC_CONTENT = 1 << 3;
+    private static final int BIN_ENCRYPTED = 1 << 4;
+
     // used for decrypted content of incoming messages, outgoing messages
     // and as fallback
     public static MessageContent plainText(String plainText) {
@@ -99,6 +127,12 @@ public class MessageContent {
         mGroupData = builder.mGroupData;
         mGroupCommand = builder.mGroupCommand;
         mDecryptedContent = builder.mDecrypted;
+
+        mEncryptedBytes = builder.mEncryptedBytes;
+        mAttachmentBytes = builder.mAttachmentBytes;
+        mPreviewBytes = builder.mPreviewBytes;
+        mGroupCommandBytes = builder.mGroupCommandBytes;
+        mDecryptedBytes = builder.mDecryptedBytes;
     }
 
     /**
@@ -107,18 +141,35 @@ public class MessageContent {
      * plain text either returns an empty string.
      */
     public String getText() {
-        return mDecryptedContent != null ? mDecryptedContent.getPlainText() : mPlainText;
+        MessageContent decrypted = this.decryptedOrNull();
+        return decrypted != null ? decrypted.getPlainText() : mPlainText;
     }
 
     public String getPlainText() {
         return mPlainText;
     }
 
-    public Optional<Attachment> getAttachment() {
-        if (mDecryptedContent != null && mDecryptedContent.getAttachment().isPresent()) {
-            return mDecryptedContent.getAttachment();
+    public synchronized Optional<Attachment> getAttachment() {
+        MessageContent decrypted = this.decryptedOrNull();
+        Attachment att = decrypted != null && decrypted.getAttachment().isPresent() ?
+                decrypted.getAttachment().get() :
+                this.attachmentOrNull();
+        if (mAttachmentObserver != null) {
+            if (att != null)
+                att.addObserver(mAttachmentObserver);
+            mAttachmentObserver = null;
         }
-        return Optional.ofNullable(mAttachment);
+        return Optional.ofNullable(att);
+    }
+
+    /**
+     * Add an observer to the attachment. If not decoded yet, the observer is
+     * added when the attachment is accessed the first time.
+     */
+    synchronized void observeAttachment(Observer observer) {
+        mAttachmentObserver = observer;
+        if (mAttachmentBytes == null && mDecryptedBytes == null)
+            this.getAttachment();
     }
 
     public Optional<InAttachment> getInAttachment() {
@@ -131,26 +182,32 @@ public class MessageContent {
         return !(att instanceof OutAttachment)? Optional.empty() : Optional.of((OutAttachment) att);
     }
 
-    String getEncryptedContent() {
+    synchronized String getEncryptedContent() {
+        if (mEncryptedBytes != null) {
+            mEncryptedContent = new String(mEncryptedBytes, StandardCharsets.UTF_8);
+            mEncryptedBytes = null;
+        }
         return mEncryptedContent;
     }
 
-    void setDecryptedContent(MessageContent decryptedContent) {
-        assert mDecryptedContent == null;
+    synchronized void setDecryptedContent(MessageContent decryptedContent) {
+        assert this.decryptedOrNull() == null;
         mDecryptedContent = decryptedContent;
         // deleting encrypted data!
         mEncryptedContent = "";
+        mEncryptedBytes = null;
     }
 
     public Optional<Preview> getPreview() {
-        if (mDecryptedContent != null && mDecryptedContent.getPreview().isPresent()) {
-            return mDecryptedContent.getPreview();
+        MessageContent decrypted = this.decryptedOrNull();
+        if (decrypted != null && decrypted.getPreview().isPresent()) {
+            return decrypted.getPreview();
         }
-        return Optional.ofNullable(mPreview);
+        return Optional.ofNullable(this.previewOrNull());
     }
 
-    void setPreview(Preview preview) {
-        if (mPreview != null) {
+    synchronized void setPreview(Preview preview) {
+        if (this.previewOrNull() != null) {
             LOGGER.warning("preview already present, not overwriting");
             return;
         }
@@ -158,41 +215,188 @@ public class MessageContent {
     }
 
     public Optional<GroupMetaData> getGroupData() {
-        if (mDecryptedContent != null &&
-                mDecryptedContent.getGroupData().isPresent()) {
-            return mDecryptedContent.getGroupData();
+        MessageContent decrypted = this.decryptedOrNull();
+        if (decrypted != null &&
+                decrypted.getGroupData().isPresent()) {
+            return decrypted.getGroupData();
         }
         return Optional.ofNullable(mGroupData);
     }
 
     public Optional<GroupCommand> getGroupCommand() {
-        if (mDecryptedContent != null &&
-                mDecryptedContent.getGroupCommand().isPresent()) {
-            return mDecryptedContent.getGroupCommand();
+        MessageContent decrypted = this.decryptedOrNull();
+        if (decrypted != null &&
+                decrypted.getGroupCommand().isPresent()) {
+            return decrypted.getGroupCommand();
         }
-        return Optional.ofNullable(mGroupCommand);
+        return Optional.ofNullable(this.groupCommandOrNull());
+    }
+
+    private synchronized Attachment attachmentOrNull() {
+        if (mAttachmentBytes != null) {
+            mAttachment = Attachment.fromBytesOrNull(mAttachmentBytes);
+            mAttachmentBytes = null;
+        }
+        return mAttachment;
+    }
+
+    private synchronized Preview previewOrNull() {
+        if (mPreviewBytes != null) {
+            mPreview = Preview.fromBytesOrNull(mPreviewBytes);
+            mPreviewBytes = null;
+        }
+        return mPreview;
+    }
+
+    private synchronized GroupCommand groupCommandOrNull() {
+        if (mGroupCommandBytes != null) {
+            mGroupCommand = GroupCommand.fromBytesOrNull(mGroupCommandBytes);
+            mGroupCommandBytes = null;
+        }
+        return mGroupCommand;
+    }
+
+    private synchronized MessageContent decryptedOrNull() {
+        if (mDecryptedBytes != null) {
+            mDecryptedContent = fromBytesOrNull(mDecryptedBytes);
+            mDecryptedBytes = null;
+        }
+        return mDecryptedContent;
     }
 
     /**
      * Return if there is no content in this message.
      * @return true if there is no content at all, false otherwise
      */
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         return mPlainText.isEmpty() &&
-                mEncryptedContent.isEmpty() &&
-                mAttachment == null &&
-                mPreview == null &&
-                mDecryptedContent == null &&
-                mGroupCommand == null;
+                mEncryptedContent.isEmpty() && mEncryptedBytes == null &&
+                mAttachment == null && mAttachmentBytes == null &&
+                mPreview == null && mPreviewBytes == null &&
+                mDecryptedContent == null && mDecryptedBytes == null &&
+                mGroupCommand == null && mGroupCommandBytes == null;
     }
 
     @Override
-    public String toString() {
-        return "CONT:plain="+mPlainText+",encr="+mEncryptedContent
-                +",att="+mAttachment+",gd="+mGroupData+",gc="+mGroupCommand
-                +",decr="+mDecryptedContent;
+    public synchronized String toString() {
+        // not decoding lazy parts
+        return "CONT:plain="+mPlainText
+                +",encr="+(mEncryptedBytes != null ? encoded(mEncryptedBytes) : mEncryptedContent)
+                +",att="+(mAttachmentBytes != null ? encoded(mAttachmentBytes) : mAttachment)
+                +",gd="+mGroupData
+                +",gc="+(mGroupCommandBytes != null ? encoded(mGroupCommandBytes) : mGroupCommand)
+                +",decr="+(mDecryptedBytes != null ? encoded(mDecryptedBytes) : mDecryptedContent);
+    }
+
+    private static String encoded(byte[] bytes) {
+        return "<"+bytes.length+" bytes>";
+    }
+
+    /**
+     * Encode content in binary format for database.
+     *
+     * Format: version byte, then recursively: flags byte, plain text and
+     * the length-prefixed parts indicated by flags (encrypted content,
+     * attachment, preview, group command, decrypted content). Parts are only
+     * decoded when accessed.
+     */
+    byte[] toBytes() {
+        return encode(out -> {
+            out.writeByte(BIN_VERSION);
+            this.write(out);
+        });
+    }
+
+    private synchronized void write(DataOutputStream out) throws IOException {
+        // not decoded parts are copied as they are
+        byte[] encrypted = mEncryptedBytes != null ? mEncryptedBytes :
+                mEncryptedContent.isEmpty() ? null :
+                mEncryptedContent.getBytes(StandardCharsets.UTF_8);
+        byte[] attachment = mAttachmentBytes != null ? mAttachmentBytes :
+                mAttachment == null ? null : encode(mAttachment::write);
+        byte[] preview = mPreviewBytes != null ? mPreviewBytes :
+                mPreview == null ? null : encode(mPreview::write);
+        byte[] groupCommand = mGroupCommandBytes != null ? mGroupCommandBytes :
+                mGroupCommand == null ? null : encode(mGroupCommand::write);
+        byte[] decrypted = mDecryptedBytes != null ? mDecryptedBytes :
+                mDecryptedContent == null ? null : encode(mDecryptedContent::write);
+
+        int flags = 0;
+        if (encrypted != null)
+            flags |= BIN_ENCRYPTED;
+        if (attachment != null)
+            flags |= BIN_ATTACHMENT;
+        if (preview != null)
+            flags |= BIN_PREVIEW;
+        if (groupCommand != null)
+            flags |= BIN_GROUP_COMMAND;
+        if (decrypted != null)
+            flags |= BIN_DEC_CONTENT;
+        out.writeByte(flags);
+
+        writeString(out, mPlainText);
+        for (byte[] part : new byte[][]{encrypted, attachment, preview, groupCommand, decrypted}) {
+            if (part != null)
+                writeBytes(out, part);
+        }
     }
 
+    /** Decode content from database, in binary or legacy JSON format. */
+    static MessageContent fromDatabase(Object value) {
+        if (value instanceof byte[])
+            return fromBytes((byte[]) value);
+        if (value instanceof String)
+            return fromJSONString((String) value);
+
+        LOGGER.warning("unknown content type: "+value);
+        return plainText("");
+    }
+
+    static MessageContent fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int version = in.readUnsignedByte();
+            switch (version) {
+                case BIN_VERSION: return read(in);
+                default:
+                    LOGGER.warning("unknown binary content version: "+version);
+                    return plainText("");
+            }
+        } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+            LOGGER.log(Level.WARNING, "can't decode binary message content", ex);
+            return plainText("");
+        }
+    }
+
+    // nested decrypted content, no version byte
+    private static MessageContent fromBytesOrNull(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return read(in);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't decode decrypted content", ex);
+            return null;
+        }
+    }
+
+    private static MessageContent read(DataInputStream in) throws IOException {
+        int flags = in.readUnsignedByte();
+        Builder builder = new Builder().body(readString(in));
+        if ((flags & BIN_ENCRYPTED) != 0)
+            builder.mEncryptedBytes = readBytes(in);
+        if ((flags & BIN_ATTACHMENT) != 0)
+            builder.mAttachmentBytes = readBytes(in);
+        if ((flags & BIN_PREVIEW) != 0)
+            builder.mPreviewBytes = readBytes(in);
+        if ((flags & BIN_GROUP_COMMAND) != 0)
+            builder.mGroupCommandBytes = readBytes(in);
+        if ((flags & BIN_DEC_CONTENT) != 0)
+            builder.mDecryptedBytes = readBytes(in);
+        return builder.build();
+    }
+
+    /**
+     * Encode content in legacy JSON format. Used before database version 8,
+     * content is now stored in binary format.
+     */
     // using legacy lib, raw types extend Object
     @SuppressWarnings("unchecked")
     String toJSON() {
@@ -200,19 +404,23 @@ public class MessageContent {
 
         EncodingUtils.putJSON(json, JSON_PLAIN_TEXT, mPlainText);
 
-        if (mAttachment != null)
-            json.put(JSON_ATTACHMENT, mAttachment.toJSONString());
+        Attachment attachment = this.attachmentOrNull();
+        if (attachment != null)
+            json.put(JSON_ATTACHMENT, attachment.toJSONString());
 
-        EncodingUtils.putJSON(json, JSON_ENC_CONTENT, mEncryptedContent);
+        EncodingUtils.putJSON(json, JSON_ENC_CONTENT, this.getEncryptedContent());
 
-        if (mPreview != null)
-            json.put(JSON_PREVIEW, mPreview.toJSON());
+        Preview preview = this.previewOrNull();
+        if (preview != null)
+            json.put(JSON_PREVIEW, preview.toJSON());
 
-        if (mGroupCommand != null)
-            json.put(JSON_GROUP_COMMAND, mGroupCommand.toJSON());
+        GroupCommand groupCommand = this.groupCommandOrNull();
+        if (groupCommand != null)
+            json.put(JSON_GROUP_COMMAND, groupCommand.toJSON());
 
-        if (mDecryptedContent != null)
-            json.put(JSON_DEC_CONTENT, mDecryptedContent.toJSON());
+        MessageContent decrypted = this.decryptedOrNull();
+        if (decrypted != null)
+            json.put(JSON_DEC_CONTENT, decrypted.toJSON());
 
         return json.toJSONString();
     }
@@ -254,11 +462,35 @@ public class MessageContent {
         static final String JSON_URL = "url";
         static final String JSON_FILENAME = "file_name";
 
+        /** State of the up- or download, not saved. */
+        public enum TransferState {
+            NONE,
+            QUEUED,
+            RUNNING,
+            /** failed, retried later */
+            WAITING,
+            CANCELLED,
+            FAILED
+        }
+
+        private TransferState mTransferState = TransferState.NONE;
+
         void changed(boolean repeat) {
             this.setChanged();
             this.notifyObservers(repeat);
         }
 
+        public TransferState getTransferState() {
+            return mTransferState;
+        }
+
+        public void setTransferState(TransferState state) {
+            if (state == mTransferState)
+                return;
+            mTransferState = state;
+            this.changed(true);
+        }
+
         public abstract String getFilename();
 
         public abstract Path getFilePath();
@@ -278,6 +510,24 @@ public class MessageContent {
 
         protected abstract String toJSONString();
 
+        abstract void write(DataOutputStream out) throws IOException;
+
+        private static Attachment fromBytesOrNull(byte[] bytes) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+                return read(in);
+            } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+                LOGGER.log(Level.WARNING, "can't decode attachment", ex);
+                return null;
+            }
+        }
+
+        private static Attachment read(DataInputStream in) throws IOException {
+            int type = in.readUnsignedByte();
+            return type == InAttachment.BIN_TYPE ?
+                    InAttachment.read(in) :
+                    OutAttachment.read(in);
+        }
+
         // using legacy lib, raw types extend Object
         @SuppressWarnings("unchecked")
         private static Attachment fromJSONOrNull(String json) {
@@ -298,6 +548,7 @@ public class MessageContent {
         private static final String JSON_ENCRYPTION = "encryption";
         private static final String JSON_SIGNING = "signing";
         private static final String JSON_CODER_ERRORS = "coder_errors";
+        private static final int BIN_TYPE = 0;
 
         // URL for file download
         private final URI mURL;
@@ -340,7 +591,8 @@ public class MessageContent {
 
         @Override
         public String getFilename() {
-            return mFilename;
+            // without directory of stored files
+            return mFilename.substring(mFilename.lastIndexOf('/') + 1);
         }
 
         public void setFile(String fileName, boolean encrypted) {
@@ -355,6 +607,12 @@ public class MessageContent {
             return path(mFilename, AttachmentManager.ATT_DIRNAME);
         }
 
+        /** Set file name after the file was moved into the attachment store. */
+        public void setStoredFile(String filename) {
+            mFilename = filename;
+            this.changed(true);
+        }
+
         public void setDecryptedFile(String filename) {
             mCoderStatus.setDecrypted();
             mFilename = filename;
@@ -412,11 +670,32 @@ public class MessageContent {
 
             return new InAttachment(url, filename, new CoderStatus(encryption, signing, errors));
         }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(BIN_TYPE);
+            writeString(out, mURL.toString());
+            writeString(out, mFilename);
+            out.writeByte(mCoderStatus.getEncryption().ordinal());
+            out.writeByte(mCoderStatus.getSigning().ordinal());
+            out.writeInt(EncodingUtils.enumSetToInt(mCoderStatus.getErrors()));
+        }
+
+        private static InAttachment read(DataInputStream in) throws IOException {
+            URI url = URI.create(readString(in));
+            String filename = readString(in);
+            Coder.Encryption encryption = Coder.Encryption.values()[in.readUnsignedByte()];
+            Coder.Signing signing = Coder.Signing.values()[in.readUnsignedByte()];
+            EnumSet<Coder.Error> errors = EncodingUtils.intToEnumSet(Coder.Error.class, in.readInt());
+
+            return new InAttachment(url, filename, new CoderStatus(encryption, signing, errors));
+        }
     }
 
     public static final class OutAttachment extends Attachment {
         private static final String JSON_MIME_TYPE = "mime_type";
         private static final String JSON_LENGTH = "length";
+        private static final int BIN_TYPE = 1;
 
         // path to upload file
         private final Path mFile;
@@ -427,6 +706,9 @@ public class MessageContent {
         // size of (decrypted) upload file in bytes, -1 by default
         private long mLength;
 
+        // progress uploaded of (encrypted) file in percent
+        private int mUploadProgress = -1;
+
         /** URI, length and (maybe) new MIME type are set after upload. */
         public OutAttachment(Path path, String mimeType) {
             this(URI.create(""), path, mimeType, -1);
@@ -479,6 +761,18 @@ public class MessageContent {
             return -1;
         }
 
+        /** Upload progress in percent, like getDownloadProgress(). */
+        public int getUploadProgress() {
+            return mUploadProgress;
+        }
+
+        /** Set upload progress. See getUploadProgress() */
+        public void setUploadProgress(int p) {
+            mUploadProgress = p;
+            if (p <= 0)
+                this.changed(true);
+        }
+
         @Override
         public boolean isEncrypted() {
             return false;
@@ -509,24 +803,48 @@ public class MessageContent {
 
             return new OutAttachment(url, file, mimeType, length);
         }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(BIN_TYPE);
+            writeString(out, mURL.toString());
+            writeString(out, mMimeType);
+            out.writeLong(mLength);
+            writeString(out, mFile.toString());
+        }
+
+        private static OutAttachment read(DataInputStream in) throws IOException {
+            URI url = URI.create(readString(in));
+            String mimeType = readString(in);
+            long length = in.readLong();
+            Path file = Paths.get(readString(in));
+
+            return new OutAttachment(url, file, mimeType, length);
+        }
     }
 
     // immutable
     public static class Preview {
 
         private static final String JSON_MIME_TYPE = "mime_type";
+        private static final String JSON_HASH = "hash";
 
         private final byte[] mData;
         private final String mMimeType;
+        // content hash of stored preview file, empty for previews saved
+        // per message before
+        private final String mHash;
 
         public Preview(byte[] data, String mimeType) {
             mData = data;
             mMimeType = mimeType;
+            mHash = data.length > 0 ? AttachmentStore.hash(data) : "";
         }
 
-        private Preview(String mimeType) {
+        private Preview(String mimeType, String hash) {
             mData = new byte[0];
             mMimeType = mimeType;
+            mHash = hash;
         }
 
         public byte[] getData() {
@@ -534,20 +852,28 @@ public class MessageContent {
         }
 
         public Path getImagePath(int messageID) {
-            return !MediaUtils.isImage(mMimeType) ? Paths.get("") :
-                    path(AttachmentManager.previewFilename(messageID, mMimeType),
-                            AttachmentManager.PREVIEW_DIRNAME);
+            if (!MediaUtils.isImage(mMimeType))
+                return Paths.get("");
+            return path(mHash.isEmpty() ?
+                            AttachmentManager.previewFilename(messageID, mMimeType) :
+                            AttachmentStore.previewFilename(mHash, mMimeType),
+                    AttachmentManager.PREVIEW_DIRNAME);
         }
 
         public String getMimeType() {
             return mMimeType;
         }
 
+        public String getHash() {
+            return mHash;
+        }
+
         // using legacy lib, raw types extend Object
         @SuppressWarnings("unchecked")
         private String toJSON() {
             JSONObject json = new JSONObject();
             EncodingUtils.putJSON(json, JSON_MIME_TYPE, mMimeType);
+            EncodingUtils.putJSON(json, JSON_HASH, mHash);
             return json.toJSONString();
         }
 
@@ -556,16 +882,31 @@ public class MessageContent {
             try {
                 Map<?, ?> map = (Map) obj;
                 String mimeType = EncodingUtils.getJSONString(map, JSON_MIME_TYPE);
-                return new Preview(mimeType);
+                String hash = EncodingUtils.getJSONString(map, JSON_HASH);
+                return new Preview(mimeType, hash);
             }  catch (NullPointerException | ClassCastException ex) {
                 LOGGER.log(Level.WARNING, "can't parse JSON preview", ex);
                 return null;
             }
         }
 
+        private void write(DataOutputStream out) throws IOException {
+            writeString(out, mMimeType);
+            writeString(out, mHash);
+        }
+
+        private static Preview fromBytesOrNull(byte[] bytes) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+                return new Preview(readString(in), readString(in));
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't decode preview", ex);
+                return null;
+            }
+        }
+
         @Override
         public String toString() {
-            return "{PRE:mime="+mMimeType+"}";
+            return "{PRE:mime="+mMimeType+",hash="+mHash+"}";
         }
     }
 
@@ -697,6 +1038,40 @@ public class MessageContent {
             }
         }
 
+        private void write(DataOutputStream out) throws IOException {
+            out.writeByte(mOP.ordinal());
+            writeString(out, mSubject);
+            writeJIDs(out, mAdded);
+            writeJIDs(out, mRemoved);
+        }
+
+        private static GroupCommand fromBytesOrNull(byte[] bytes) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+                OP op = OP.values()[in.readUnsignedByte()];
+                String subj = readString(in);
+                List<JID> added = readJIDs(in);
+                List<JID> removed = readJIDs(in);
+                return new GroupCommand(op, added, removed, subj);
+            } catch (IOException | IndexOutOfBoundsException ex) {
+                LOGGER.log(Level.WARNING, "can't decode group command", ex);
+                return null;
+            }
+        }
+
+        private static void writeJIDs(DataOutputStream out, List<JID> jids) throws IOException {
+            out.writeInt(jids.size());
+            for (JID jid : jids)
+                writeString(out, jid.string());
+        }
+
+        private static List<JID> readJIDs(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            List<JID> jids = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                jids.add(JID.bare(readString(in)));
+            return jids;
+        }
+
         @Override
         public String toString() {
             return "{GC:op="+mOP+",subj="+mSubject+"}";
@@ -711,6 +1086,12 @@ public class MessageContent {
         private KonGroupData mGroupData = null;
         private GroupCommand mGroupCommand = null;
         private MessageContent mDecrypted = null;
+        // encoded parts, only when loaded from database
+        private byte[] mEncryptedBytes = null;
+        private byte[] mAttachmentBytes = null;
+        private byte[] mPreviewBytes = null;
+        private byte[] mGroupCommandBytes = null;
+        private byte[] mDecryptedBytes = null;
 
         public Builder body(String body) {
             mBodyText = body; return this; }
@@ -738,6 +1119,44 @@ public class MessageContent {
         }
     }
 
+    private interface Encodable {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(Encodable encodable) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            encodable.write(out);
+        } catch (IOException ex) {
+            // writing to memory, should not happen
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available())
+            throw new IOException("invalid length: "+length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // not using writeUTF(), limited to 64KB
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        writeBytes(out, string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
     private static Path path(String filename, String dirName) {
         return filename.isEmpty() ? Paths.get("") :
                 Model.appDir().resolve(dirName).resolve(filename);
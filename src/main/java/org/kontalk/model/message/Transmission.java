@@ -20,8 +20,8 @@ package org.kontalk.model.message;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,6 +33,7 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.commons.lang.StringUtils;
 import org.kontalk.misc.JID;
 import org.kontalk.model.Contact;
 import org.kontalk.model.Model;
@@ -54,6 +55,8 @@ final public class Transmission {
     private static final String COL_CONTACT_ID = "user_id";
     private static final String COL_JID = "jid";
     private static final String COL_REC_DATE = "received_date";
+    // SQLite limits the number of host parameters (999 by default)
+    private static final int MAX_IDS_PER_QUERY = 500;
     public static final String SCHEMA = "( " +
             Database.SQL_ID +
             COL_MESSAGE_ID + " INTEGER NOT NULL, " +
@@ -67,6 +70,10 @@ final public class Transmission {
             "FOREIGN KEY ("+COL_MESSAGE_ID+") REFERENCES "+KonMessage.TABLE+" (_id) " +
             "FOREIGN KEY ("+COL_CONTACT_ID+") REFERENCES "+Contact.TABLE+" (_id) " +
             ")";
+    public static final String[] INDICES = {
+            // loading transmissions of messages
+            COL_MESSAGE_ID
+    };
 
     private final int mID;
 
@@ -144,20 +151,31 @@ final public class Transmission {
         return "T:id="+mID+",contact="+mContact+",jid="+mJID+",recdate="+mReceivedDate;
     }
 
-    static Set<Transmission> load(int messageID, Map<Integer, Contact> contactMap) {
-        HashSet<Transmission> ts = new HashSet<>();
-        try (ResultSet transmissionRS = Model.database().execSelectWhereInsecure(TABLE,
-                COL_MESSAGE_ID + " == " + messageID)) {
-            while (transmissionRS.next()) {
-                ts.add(load(transmissionRS, contactMap));
+    /**
+     * Load the transmissions of many messages with as few queries as possible.
+     * @return transmissions by message ID
+     */
+    static Map<Integer, Set<Transmission>> load(Database db, List<Integer> messageIDs,
+            Map<Integer, Contact> contactMap) throws SQLException {
+        Map<Integer, Set<Transmission>> tsMap = new HashMap<>();
+        for (int i = 0; i < messageIDs.size(); i += MAX_IDS_PER_QUERY) {
+            List<Object> ids = new ArrayList<>(messageIDs.subList(i,
+                    Math.min(messageIDs.size(), i + MAX_IDS_PER_QUERY)));
+            String where = COL_MESSAGE_ID + " IN (" +
+                    StringUtils.repeat("?", ", ", ids.size()) + ")";
+            try (Database.Query query = db.execSelectWhere(TABLE, where, ids)) {
+                ResultSet transmissionRS = query.resultSet();
+                while (transmissionRS.next()) {
+                    Transmission t = load(transmissionRS, contactMap);
+                    if (t == null)
+                        continue;
+                    tsMap.computeIfAbsent(transmissionRS.getInt(COL_MESSAGE_ID),
+                            k -> new HashSet<>())
+                            .add(t);
+                }
             }
-        } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't load transmission(s) from db", ex);
-            return Collections.emptySet();
         }
-        if (ts.isEmpty())
-            LOGGER.warning("no transmission(s) found, messageID: "+messageID);
-        return ts;
+        return tsMap;
     }
 
     private static Transmission load(ResultSet resultSet,
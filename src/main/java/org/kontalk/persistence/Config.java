@@ -60,6 +60,13 @@ public final class Config extends PropertiesConfiguration {
     public static final String NET_AUTO_SUBSCRIPTION = "net.auto_subscription";
     public static final String NET_REQUEST_AVATARS = "net.request_avatars";
     public static final String NET_MAX_IMG_SIZE = "net.max_img_size";
+    // encrypt attachments while uploading. The upload slot is requested for
+    // the plain size, the encrypted body is larger and sent without length:
+    // servers that enforce the slot size reject these uploads
+    public static final String NET_STREAM_UPLOAD = "net.stream_upload";
+    public static final String NET_UPLOAD_LANES = "net.upload_lanes";
+    public static final String NET_DOWNLOAD_LANES = "net.download_lanes";
+    public static final String NET_CHUNKED_UPLOAD = "net.chunked_upload";
     public static final String MAIN_CONNECT_STARTUP = "main.connect_startup";
     public static final String NET_RETRY_CONNECT = "main.retry_connect";
     public static final String MAIN_TRAY = "main.tray";
@@ -109,6 +116,10 @@ public final class Config extends PropertiesConfiguration {
         map.put(NET_AUTO_SUBSCRIPTION, false);
         map.put(NET_REQUEST_AVATARS, true);
         map.put(NET_MAX_IMG_SIZE, -1);
+        map.put(NET_STREAM_UPLOAD, false);
+        map.put(NET_UPLOAD_LANES, 2);
+        map.put(NET_DOWNLOAD_LANES, 3);
+        map.put(NET_CHUNKED_UPLOAD, false);
         map.put(NET_RETRY_CONNECT, true);
         map.put(MAIN_CONNECT_STARTUP, true);
         map.put(MAIN_TRAY, true);
@@ -27,11 +27,23 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -43,6 +55,7 @@ import org.kontalk.model.chat.Chat;
 import org.kontalk.model.Contact;
 import org.kontalk.model.chat.Member;
 import org.kontalk.model.message.Transmission;
+import org.kontalk.system.AttachmentStore;
 import org.kontalk.util.EncodingUtils;
 import org.sqlite.SQLiteConfig;
 
@@ -50,9 +63,17 @@ import org.sqlite.SQLiteConfig;
  * Global database for permanently storing all model information.
  * Uses the JDBC API and SQLite as DBMS.
  *
- * Database access is not concurrent safe (connection pool is needed). At least
- * writing is synchronized. Hopefully we don't see this no more:
- * "SQLException: ResultSet already requested" or "ResultSet closed"
+ * The database uses write-ahead logging (WAL). All writing goes through one
+ * synchronized connection, selects use a small pool of read-only connections.
+ * Readers therefore never block the writer and see only committed data.
+ * Nested selects of a thread share its read connection; if all connections
+ * are used by other threads, a select waits for one to be released.
+ *
+ * Writes are not committed one by one. Updates are queued (coalesced per row)
+ * and all writes are committed in groups, after a short delay or when too many
+ * writes are pending. Selects do not wait for pending writes: they return
+ * the last committed state, written rows of models in memory are kept up to
+ * date by the model itself. Call commit() if a select must see own writes.
  *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
@@ -62,12 +83,46 @@ public final class Database {
     public static final String SQL_ID = "_id INTEGER PRIMARY KEY AUTOINCREMENT, ";
 
     private static final String FILENAME = "kontalk_db.sqlite";
-    private static final int DB_VERSION = 5;
+    static final int DB_VERSION = 10;
     private static final String SQL_CREATE = "CREATE TABLE IF NOT EXISTS ";
     private static final String SV = "schema_version";
     private static final String UV = "user_version";
 
+    /** Maximum time writes are held back before they are committed. */
+    private static final long COMMIT_DELAY = 50; // milliseconds
+    /** Number of uncommitted writes that triggers an immediate commit. */
+    private static final int MAX_UNCOMMITTED = 500;
+    /** Maximum number of read-only connections. */
+    private static final int READ_CONNECTIONS = 3;
+
+    private final String mURL;
+    // the writer
     private Connection mConn = null;
+    // idle reader connections, opened on demand
+    private final BlockingQueue<Connection> mReadPool =
+            new ArrayBlockingQueue<>(READ_CONNECTIONS);
+    // number of opened reader connections, guarded by mReadPool
+    private int mReadConnections = 0;
+    // reader connection in use by the current thread
+    private final ThreadLocal<Reader> mThreadReader = new ThreadLocal<>();
+
+    // compiled insert/update/delete statements, guarded by this
+    private final Map<String, PreparedStatement> mStatementCache = new HashMap<>();
+
+    private final Timer mCommitTimer = new Timer("Database Writer", true);
+    // queued updates, merged by row; guarded by this
+    private final Map<Row, Map<String, Object>> mPendingUpdates = new LinkedHashMap<>();
+    // guarded by this
+    private int mUncommitted = 0;
+    private boolean mCommitScheduled = false;
+    // run after the next commit; guarded by this
+    private final List<Runnable> mCommitActions = new ArrayList<>();
+    private final ExecutorService mActionExecutor = Executors.newSingleThreadExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "Database Commit Actions");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     public Database(Path appDir) throws KonException {
         // load the sqlite-JDBC driver using the current class loader
@@ -80,10 +135,14 @@ public final class Database {
 
         // create database connection
         Path path = appDir.resolve(FILENAME);
+        mURL = "jdbc:sqlite:" + path.toString();
         SQLiteConfig config = new SQLiteConfig();
         config.enforceForeignKeys(true);
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        // durable enough with WAL, commits don't need to wait for fsync
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
         try {
-          mConn = DriverManager.getConnection("jdbc:sqlite:" + path.toString(), config.toProperties());
+          mConn = DriverManager.getConnection(mURL, config.toProperties());
         } catch(SQLException ex) {
           // if the error message is "out of memory",
           // it probably means no database file is found
@@ -99,8 +158,8 @@ public final class Database {
         }
 
         boolean isNew;
-        try (ResultSet rs = this.execQuery("PRAGMA "+SV)) {
-            isNew = rs.getInt(SV) == 0;
+        try (Query query = this.execWriterQuery("PRAGMA "+SV)) {
+            isNew = query.resultSet().getInt(SV) == 0;
         } catch (SQLException ex) {
             LOGGER.log(Level.SEVERE, "can't get schema version", ex);
             throw new KonException(KonException.Error.DB, ex);
@@ -117,6 +176,10 @@ public final class Database {
                 this.createTable(stat, Member.TABLE, Member.SCHEMA);
                 this.createTable(stat, KonMessage.TABLE, KonMessage.SCHEMA);
                 this.createTable(stat, Transmission.TABLE, Transmission.SCHEMA);
+                this.createVirtualTable(stat, KonMessage.FTS_TABLE, KonMessage.FTS_SCHEMA);
+                this.createIndices(stat);
+                this.createAttachmentStoreTable(stat);
+                this.commit();
             } catch (SQLException ex) {
                 LOGGER.log(Level.SEVERE, "can't create tables", ex);
                 throw new KonException(KonException.Error.DB, ex);
@@ -126,8 +189,8 @@ public final class Database {
 
         // update if needed
         int version;
-        try (ResultSet rs = this.execQuery("PRAGMA "+UV)) {
-            version = rs.getInt(UV);
+        try (Query query = this.execWriterQuery("PRAGMA "+UV)) {
+            version = query.resultSet().getInt(UV);
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't get db version", ex);
             return;
@@ -146,6 +209,30 @@ public final class Database {
         stat.executeUpdate(SQL_CREATE + table + " " + schema);
     }
 
+    private void createVirtualTable(Statement stat, String table, String schema)
+            throws SQLException {
+        stat.executeUpdate("CREATE VIRTUAL TABLE IF NOT EXISTS " + table + " " + schema);
+    }
+
+    private void createIndices(Statement stat) throws SQLException {
+        for (String columns : KonMessage.INDICES)
+            this.createIndex(stat, KonMessage.TABLE, columns);
+        for (String columns : Transmission.INDICES)
+            this.createIndex(stat, Transmission.TABLE, columns);
+    }
+
+    private void createAttachmentStoreTable(Statement stat) throws SQLException {
+        this.createTable(stat, AttachmentStore.TABLE, AttachmentStore.SCHEMA);
+        for (String columns : AttachmentStore.INDICES)
+            this.createIndex(stat, AttachmentStore.TABLE, columns);
+    }
+
+    private void createIndex(Statement stat, String table, String columns) throws SQLException {
+        String name = table + "_" + columns.replace(", ", "_");
+        stat.executeUpdate("CREATE INDEX IF NOT EXISTS " + name + " ON " + table +
+                " (" + columns + ")");
+    }
+
     private void update(int fromVersion) throws SQLException {
         if (fromVersion < 1) {
             mConn.createStatement().execute("ALTER TABLE "+Chat.TABLE+
@@ -184,6 +271,30 @@ public final class Database {
             mConn.createStatement().execute("ALTER TABLE "+Member.TABLE+
                     " ADD COLUMN "+Member.COL_ROLE+" DEFAULT 0");
         }
+        if (fromVersion < 6) {
+            this.createIndices(mConn.createStatement());
+            mConn.createStatement().execute("ANALYZE");
+        }
+        if (fromVersion < 7) {
+            this.createVirtualTable(mConn.createStatement(),
+                    KonMessage.FTS_TABLE, KonMessage.FTS_SCHEMA);
+            // readers only see committed changes
+            this.commit();
+            LOGGER.info("creating search index...");
+            KonMessage.indexAll(this);
+        }
+        if (fromVersion < 8) {
+            this.commit();
+            LOGGER.info("converting message content...");
+            KonMessage.convertContent(this);
+        }
+        if (fromVersion < 9) {
+            mConn.createStatement().execute("ALTER TABLE "+Chat.TABLE+
+                    " ADD COLUMN "+Chat.COL_UNREAD+" INTEGER NOT NULL DEFAULT 0");
+        }
+        if (fromVersion < 10) {
+            this.createAttachmentStoreTable(mConn.createStatement());
+        }
 
         // set new version
         mConn.createStatement().execute("PRAGMA "+UV+" = "+DB_VERSION);
@@ -191,13 +302,25 @@ public final class Database {
         LOGGER.info("updated to version "+DB_VERSION);
     }
 
+    /** Commit all pending writes and close the database. */
     public synchronized void close() {
+        mCommitTimer.cancel();
+        mActionExecutor.shutdown();
         try {
             if(mConn == null || mConn.isClosed())
                 return;
+            this.applyUpdates();
+            for (Connection conn : mReadPool)
+                conn.close();
+            mReadPool.clear();
+            for (PreparedStatement stat : mStatementCache.values())
+                stat.close();
+            mStatementCache.clear();
             // just to be sure
             mConn.commit();
             mConn.close();
+            if (!mCommitActions.isEmpty())
+                LOGGER.warning("commit actions not run: "+mCommitActions.size());
         } catch(SQLException ex) {
             LOGGER.log(Level.WARNING, "can't close db", ex);
         }
@@ -205,34 +328,165 @@ public final class Database {
 
     /**
      * Select all rows from one table.
-     * The returned ResultSet must be closed by the caller after usage!
+     * The returned query must be closed by the caller after usage!
      */
-    public ResultSet execSelectAll(String table) throws SQLException {
-        return this.execQuery("SELECT * FROM " + table);
+    public Query execSelectAll(String table) throws SQLException {
+        return this.execQuery("SELECT * FROM " + table, Collections.emptyList());
     }
 
     /**
-     * Select rows from one table that match an arbitrary 'where' clause.
-     * Insecure to SQL injections, use with caution!
-     * The returned ResultSet must be closed by the caller after usage!
+     * Select rows from one table that match a 'where' clause with parameter
+     * placeholders ('?').
+     * The returned query must be closed by the caller after usage!
      */
-    public ResultSet execSelectWhereInsecure(String table, String where) throws SQLException {
-        return this.execQuery("SELECT * FROM " + table + " WHERE " + where);
+    public Query execSelectWhere(String table, String where, List<Object> values)
+            throws SQLException {
+        return this.execSelectWhere(table, where, values, "", -1);
+    }
+
+    /**
+     * Select rows from one table that match a 'where' clause with parameter
+     * placeholders ('?'), sorted and limited.
+     * The returned query must be closed by the caller after usage!
+     * @param orderBy 'order by' clause, empty for unsorted
+     * @param limit maximum number of rows, negative for no limit
+     */
+    public Query execSelectWhere(String table, String where, List<Object> values,
+            String orderBy, int limit) throws SQLException {
+        String select = "SELECT * FROM " + table + " WHERE " + where;
+        if (!orderBy.isEmpty())
+            select += " ORDER BY " + orderBy;
+        if (limit >= 0)
+            select += " LIMIT " + limit;
+        return this.execQuery(select, values);
     }
 
-    private ResultSet execQuery(String select) throws SQLException {
+    private Query execQuery(String select, List<Object> values) throws SQLException {
+        Reader reader = this.acquireReader();
         try {
-            PreparedStatement stat = mConn.prepareStatement(select);
-            // does not work, i dont care
-            //stat.closeOnCompletion();
-            ResultSet resultSet = stat.executeQuery();
-            return resultSet;
+            PreparedStatement stat = reader.conn.prepareStatement(select);
+            try {
+                insertValues(stat, values);
+                return new Query(this, reader, stat, stat.executeQuery());
+            } catch (SQLException ex) {
+                stat.close();
+                throw ex;
+            }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't execute select: " + select, ex);
+            this.releaseReader(reader);
             throw ex;
         }
     }
 
+    /** Query with the writer connection, only used for setup. */
+    private Query execWriterQuery(String select) throws SQLException {
+        PreparedStatement stat = mConn.prepareStatement(select);
+        return new Query(null, null, stat, stat.executeQuery());
+    }
+
+    /**
+     * Get the read connection of the current thread, an idle connection or
+     * a new one. Waits if the maximum number of connections is in use.
+     */
+    private Reader acquireReader() throws SQLException {
+        Reader reader = mThreadReader.get();
+        if (reader != null && reader.queries > 0) {
+            // nested select
+            reader.queries++;
+            return reader;
+        }
+
+        Connection conn = mReadPool.poll();
+        if (conn == null) {
+            boolean open;
+            synchronized (mReadPool) {
+                open = mReadConnections < READ_CONNECTIONS;
+                if (open)
+                    mReadConnections++;
+            }
+            if (open) {
+                try {
+                    conn = this.openReadConnection();
+                } catch (SQLException ex) {
+                    synchronized (mReadPool) {
+                        mReadConnections--;
+                    }
+                    throw ex;
+                }
+            } else {
+                try {
+                    conn = mReadPool.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("interrupted while waiting for connection", ex);
+                }
+            }
+        }
+        reader = new Reader(conn);
+        mThreadReader.set(reader);
+        return reader;
+    }
+
+    private Connection openReadConnection() throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        return DriverManager.getConnection(mURL, config.toProperties());
+    }
+
+    private void releaseReader(Reader reader) {
+        reader.queries--;
+        if (reader.queries > 0)
+            return;
+
+        if (mThreadReader.get() == reader)
+            mThreadReader.remove();
+        try {
+            if (reader.conn.isClosed())
+                return;
+            // database closed
+            if (mConn.isClosed() || !mReadPool.offer(reader.conn))
+                reader.conn.close();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't release connection", ex);
+        }
+    }
+
+    /**
+     * Full-text search in a FTS5 table, best matching rows first. Selected are
+     * the row ID ('rowid') and all columns.
+     * The returned query must be closed by the caller after usage!
+     * @param match FTS5 query, see toMatchQuery()
+     * @param where additional 'where' clause with parameter placeholders,
+     * empty for none
+     * @param limit maximum number of rows
+     */
+    public Query execSearch(String table, String match, String where, List<Object> values,
+            int limit) throws SQLException {
+        String select = "SELECT rowid, * FROM " + table + " WHERE " + table + " MATCH ?";
+        if (!where.isEmpty())
+            select += " AND " + where;
+        select += " ORDER BY rank LIMIT " + limit;
+
+        List<Object> allValues = new ArrayList<>(values.size() + 1);
+        allValues.add(match);
+        allValues.addAll(values);
+        return this.execQuery(select, allValues);
+    }
+
+    /**
+     * Create a FTS5 query from user input: all words must match as prefix.
+     * Empty string if there are no words.
+     */
+    public static String toMatchQuery(String search) {
+        List<String> words = new ArrayList<>();
+        for (String word : StringUtils.split(search)) {
+            // quoted: no special characters
+            words.add("\"" + word.replace("\"", "\"\"") + "\"*");
+        }
+        return StringUtils.join(words, " ");
+    }
+
     /**
      * Add a new model / row to database.
      * @param table table name the values are inserted into
@@ -241,57 +495,142 @@ public final class Database {
      */
     public synchronized int execInsert(String table, List<Object> values) {
         // first column is the id
-        String insert = "INSERT INTO " + table + " VALUES (NULL,";
-
-        List<String> vList = new ArrayList<>(values.size());
-        while(vList.size() < values.size())
-            vList.add("?");
+        String insert = "INSERT INTO " + table + " VALUES (NULL, " +
+                StringUtils.repeat("?", ", ", values.size()) + ")";
 
-        insert += StringUtils.join(vList, ", ") + ")";
-
-        try (PreparedStatement stat = mConn.prepareStatement(insert,
-                Statement.RETURN_GENERATED_KEYS)) {
+        try {
+            PreparedStatement stat = this.cachedStatement(
+                    "insert:" + table + ":" + values.size(), insert, true);
             insertValues(stat, values);
             stat.executeUpdate();
-            mConn.commit();
-            ResultSet keys = stat.getGeneratedKeys();
-            return keys.getInt(1);
+            this.written();
+            try (ResultSet keys = stat.getGeneratedKeys()) {
+                return keys.getInt(1);
+            }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't execute insert: " + insert + " " + values, ex);
             return -1;
         }
     }
 
-    /** Update values (at most one row). */
+    /**
+     * Update values (at most one row).
+     * The update is queued and may be merged with following updates of the
+     * same row.
+     */
     public synchronized void execUpdate(String table, Map<String, Object> set, int id) {
         LOGGER.config("table: "+table);
-        String update = "UPDATE OR FAIL " + table + " SET ";
-
-        List<String> keyList = new ArrayList<>(set.keySet());
+        mPendingUpdates.computeIfAbsent(new Row(table, id), k -> new HashMap<>())
+                .putAll(set);
+        this.written();
+    }
 
-        List<String> vList = keyList.stream()
-                .map(key -> key + " = ?")
-                .collect(Collectors.toList());
+    private void update(Row row, Map<String, Object> set) {
+        // sorted, the statement for a column set is always the same
+        List<String> keyList = new ArrayList<>(new TreeSet<>(set.keySet()));
 
-        update += StringUtils.join(vList, ", ") + " WHERE _id == " + id ;
+        String update = "UPDATE OR FAIL " + row.table + " SET " +
+                keyList.stream().map(key -> key + " = ?").collect(Collectors.joining(", ")) +
+                " WHERE _id == ?";
         // note: looks like driver doesn't support "LIMIT"
         //update += " LIMIT 1";
 
-        try (PreparedStatement stat = mConn.prepareStatement(update, Statement.RETURN_GENERATED_KEYS)) {
+        try {
+            PreparedStatement stat = this.cachedStatement(
+                    "update:" + row.table + ":" + keyList, update, false);
             insertValues(stat, keyList, set);
+            stat.setInt(keyList.size() + 1, row.id);
             stat.executeUpdate();
-            mConn.commit();
-            stat.getGeneratedKeys();
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't execute update: " + update + " " + set, ex);
         }
     }
 
+    private void applyUpdates() {
+        if (mPendingUpdates.isEmpty())
+            return;
+
+        mPendingUpdates.forEach(this::update);
+        mPendingUpdates.clear();
+    }
+
+    /** Count a write and commit now or schedule a commit. */
+    private void written() {
+        mUncommitted++;
+        if (mUncommitted >= MAX_UNCOMMITTED) {
+            this.commit();
+            return;
+        }
+
+        if (mCommitScheduled)
+            return;
+
+        mCommitScheduled = true;
+        mCommitTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (Database.this) {
+                    mCommitScheduled = false;
+                    Database.this.commit();
+                }
+            }
+        }, COMMIT_DELAY);
+    }
+
+    /**
+     * Set the indexed columns of one row in a FTS5 table.
+     * @param rowID row ID, must be equal to the ID of the indexed model
+     */
+    public synchronized void execReplaceText(String table, int rowID, Map<String, Object> set) {
+        List<String> keyList = new ArrayList<>(new TreeSet<>(set.keySet()));
+        String insert = "INSERT INTO " + table + " (rowid, " + StringUtils.join(keyList, ", ") +
+                ") VALUES (?, " + StringUtils.repeat("?", ", ", keyList.size()) + ")";
+        try {
+            PreparedStatement delete = this.cachedStatement("delete_text:" + table,
+                    "DELETE FROM " + table + " WHERE rowid == ?", false);
+            delete.setInt(1, rowID);
+            delete.executeUpdate();
+
+            PreparedStatement stat = this.cachedStatement(
+                    "insert_text:" + table + ":" + keyList, insert, false);
+            stat.setInt(1, rowID);
+            for (int i = 0; i < keyList.size(); i++)
+                setValue(stat, i + 1, set.get(keyList.get(i)));
+            stat.executeUpdate();
+            this.written();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't index text: " + insert + " " + set, ex);
+        }
+    }
+
+    /**
+     * Delete all rows that match a 'where' clause with parameter
+     * placeholders ('?').
+     * Not commited! Call commit() after deletions.
+     */
+    public synchronized boolean execDeleteWhere(String table, String where, List<Object> values) {
+        LOGGER.info("deletion, table: " + table + "; where: " + where + " " + values);
+        this.applyUpdates();
+        try (PreparedStatement stat = mConn.prepareStatement(
+                "DELETE FROM " + table + " WHERE " + where)) {
+            insertValues(stat, values);
+            stat.executeUpdate();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't delete", ex);
+            return false;
+        }
+        return true;
+    }
+
     /** Delete one row. Not commited! Call commit() after deletions. */
-    public boolean execDelete(String table, int id) {
+    public synchronized boolean execDelete(String table, int id) {
         LOGGER.info("deletion, table: " + table + "; id: " + id);
-        try (Statement stat = mConn.createStatement()) {
-            stat.executeUpdate("DELETE FROM " + table + " WHERE _id = " + id);
+        mPendingUpdates.remove(new Row(table, id));
+        try {
+            PreparedStatement stat = this.cachedStatement("delete:" + table,
+                    "DELETE FROM " + table + " WHERE _id == ?", false);
+            stat.setInt(1, id);
+            stat.executeUpdate();
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't delete", ex);
             return false;
@@ -299,16 +638,72 @@ public final class Database {
         return true;
     }
 
-    public boolean commit() {
+    /**
+     * Return the compiled statement for a key (table and column set) or
+     * prepare and cache it. Cached statements are never closed by callers.
+     */
+    private PreparedStatement cachedStatement(String key, String sql, boolean returnKeys)
+            throws SQLException {
+        PreparedStatement stat = mStatementCache.get(key);
+        if (stat != null && !stat.isClosed()) {
+            stat.clearParameters();
+            return stat;
+        }
+
+        stat = returnKeys ?
+                mConn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) :
+                mConn.prepareStatement(sql);
+        mStatementCache.put(key, stat);
+        return stat;
+    }
+
+    /** Apply queued updates and commit all writes. */
+    public synchronized boolean commit() {
+        this.applyUpdates();
+        mUncommitted = 0;
         try {
             mConn.commit();
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't commit", ex);
             return false;
         }
+
+        if (!mCommitActions.isEmpty()) {
+            this.runActions(new ArrayList<>(mCommitActions));
+            mCommitActions.clear();
+        }
         return true;
     }
 
+    /**
+     * Run an action after all writes done so far are committed, e.g. to
+     * confirm that data is stored. Actions run in order in a background
+     * thread. Actions pending when the database is closed are not run.
+     */
+    public synchronized void afterCommit(Runnable action) {
+        if (mUncommitted == 0)
+            this.runActions(Collections.singletonList(action));
+        else
+            mCommitActions.add(action);
+    }
+
+    // not holding the writer
+    private void runActions(List<Runnable> actions) {
+        try {
+            mActionExecutor.execute(() -> {
+                for (Runnable action : actions) {
+                    try {
+                        action.run();
+                    } catch (RuntimeException ex) {
+                        LOGGER.log(Level.WARNING, "commit action failed", ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            LOGGER.warning("closed, commit actions not run: "+actions.size());
+        }
+    }
+
     private static void insertValues(PreparedStatement stat,
             List<String> keys,
             Map<String, Object> map) throws SQLException {
@@ -330,6 +725,10 @@ public final class Database {
                 stat.setString(i+1, (String) value);
             } else if (value instanceof Integer) {
                 stat.setInt(i+1, (int) value);
+            } else if (value instanceof Long) {
+                stat.setLong(i+1, (long) value);
+            } else if (value instanceof byte[]) {
+                stat.setBytes(i+1, (byte[]) value);
             } else if (value instanceof Date) {
                 stat.setLong(i+1, ((Date) value).getTime());
             } else if (value instanceof Boolean) {
@@ -367,4 +766,75 @@ public final class Database {
     public static String setString(String s) {
         return s.isEmpty() ? null : s;
     }
+
+    /**
+     * Handle for the result of a select. Closing it closes both the result set
+     * and the statement and releases the connection.
+     */
+    public static final class Query implements AutoCloseable {
+        // null for writer connection
+        private final Database mDB;
+        private final Reader mReader;
+        private final PreparedStatement mStat;
+        private final ResultSet mResultSet;
+
+        private Query(Database db, Reader reader, PreparedStatement stat, ResultSet resultSet) {
+            mDB = db;
+            mReader = reader;
+            mStat = stat;
+            mResultSet = resultSet;
+        }
+
+        public ResultSet resultSet() {
+            return mResultSet;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                mResultSet.close();
+                mStat.close();
+            } finally {
+                if (mDB != null)
+                    mDB.releaseReader(mReader);
+            }
+        }
+    }
+
+    /** Read connection and number of open queries of one thread. */
+    private static final class Reader {
+        final Connection conn;
+        int queries = 1;
+
+        Reader(Connection conn) {
+            this.conn = conn;
+        }
+    }
+
+    private static final class Row {
+        final String table;
+        final int id;
+
+        Row(String table, int id) {
+            this.table = table;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+
+            if (!(o instanceof Row))
+                return false;
+
+            Row oRow = (Row) o;
+            return id == oRow.id && table.equals(oRow.table);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, id);
+        }
+    }
 }
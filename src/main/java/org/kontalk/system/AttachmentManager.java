@@ -23,18 +23,35 @@ import static org.kontalk.util.MediaUtils.isImage;
 import java.awt.Dimension;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.kontalk.client.Client;
 import org.kontalk.client.HTTPFileClient;
@@ -43,14 +60,17 @@ import org.kontalk.crypto.Coder.Encryption;
 import org.kontalk.crypto.PGPUtils;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.misc.KonException;
+import org.kontalk.model.chat.Chat;
 import org.kontalk.model.message.InMessage;
 import org.kontalk.model.message.KonMessage;
 import org.kontalk.model.message.MessageContent.Attachment;
+import org.kontalk.model.message.MessageContent.Attachment.TransferState;
 import org.kontalk.model.message.MessageContent.InAttachment;
 import org.kontalk.model.message.MessageContent.OutAttachment;
 import org.kontalk.model.message.MessageContent.Preview;
 import org.kontalk.model.message.OutMessage;
 import org.kontalk.persistence.Config;
+import org.kontalk.persistence.Database;
 import org.kontalk.util.MediaUtils;
 
 /**
@@ -60,7 +80,7 @@ import org.kontalk.util.MediaUtils;
  *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
-public class AttachmentManager implements Runnable {
+public class AttachmentManager {
     private static final Logger LOGGER = Logger.getLogger(AttachmentManager.class.getName());
 
     public static final String ATT_DIRNAME = "attachments";
@@ -89,23 +109,82 @@ public class AttachmentManager implements Runnable {
 
     //private static final String ENCRYPT_MIME = "application/octet-stream";
 
+    /** Transfer errors after which the transfer is retried. */
+    private static final EnumSet<KonException.Error> RETRY_ERRORS = EnumSet.of(
+            KonException.Error.UPLOAD_EXECUTE,
+            KonException.Error.DOWNLOAD_EXECUTE,
+            KonException.Error.DOWNLOAD_WRITE);
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long RETRY_BASE_DELAY = 5; // seconds
+    private static final long RETRY_MAX_DELAY = 5 * 60; // seconds
+
     private final Control mControl;
     private final Client mClient;
 
-    private final LinkedBlockingQueue<Task> mQueue = new LinkedBlockingQueue<>();
+    private final PriorityBlockingQueue<Task> mUploadQueue = new PriorityBlockingQueue<>();
+    private final PriorityBlockingQueue<Task> mDownloadQueue = new PriorityBlockingQueue<>();
+    // queued, running and waiting tasks by message ID
+    private final Map<Integer, Task> mTasks = new ConcurrentHashMap<>();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final Timer mRetryTimer = new Timer("Attachment Retry Timer", true);
+    // file deletion of the attachment store, not on the EDT
+    private final ExecutorService mStoreExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Attachment Store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final int mUploadLanes;
+    private final int mDownloadLanes;
     private final Path mAttachmentDir;
     private final Path mPreviewDir;
+    private final AttachmentStore mStore;
+
+    // shared by all transfers of the current account
+    private HTTPFileClient mHTTPClient = null;
+    private PersonalKey mHTTPClientKey = null;
+
+    // chat shown in view, its transfers go first
+    private volatile Chat mVisibleChat = null;
 
-    private static class Task {
+    /**
+     * Transfer of one message attachment. Tasks for the visible chat go
+     * first, then tasks for recent messages.
+     * Priority is only changed while the task is not in a queue.
+     */
+    private abstract static class Task implements Comparable<Task> {
+        // aborts the running transfer when cancelled
+        final HTTPFileClient.Transfer transfer = new HTTPFileClient.Transfer();
+        // number of failed attempts before
+        int attempt = 0;
+        boolean urgent = false;
+        // queue order of tasks with equal priority
+        long sequence = 0;
 
         private Task() {}
 
+        abstract KonMessage message();
+
+        @Override
+        public int compareTo(Task o) {
+            if (urgent != o.urgent)
+                return urgent ? -1 : 1;
+            int dateComp = o.message().getDate().compareTo(this.message().getDate());
+            return dateComp != 0 ? dateComp : Long.compare(sequence, o.sequence);
+        }
+
         static final class UploadTask extends Task {
             final OutMessage message;
+            // prepared file and slot for retries, null before first attempt
+            PendingUpload pending = null;
 
             UploadTask(OutMessage message) {
                 this.message = message;
             }
+
+            @Override
+            KonMessage message() {
+                return message;
+            }
         }
 
         static final class DownloadTask extends Task {
@@ -114,12 +193,49 @@ public class AttachmentManager implements Runnable {
             DownloadTask(InMessage message) {
                 this.message = message;
             }
+
+            @Override
+            KonMessage message() {
+                return message;
+            }
         }
     }
 
-    private AttachmentManager(Control control, Client client, Path baseDir) {
+    /** Prepared upload file and slot, kept between attempts. */
+    private static final class PendingUpload {
+        final File file;
+        final File original;
+        final String mime;
+        final Slot slot;
+        final boolean encrypt;
+        // upload in chunks, null if file is sent with one request
+        final HTTPFileClient.ChunkedUpload chunked;
+
+        PendingUpload(File file, File original, String mime, Slot slot, boolean encrypt,
+                boolean chunked) {
+            this.file = file;
+            this.original = original;
+            this.mime = mime;
+            this.slot = slot;
+            this.encrypt = encrypt;
+            this.chunked = chunked ?
+                    new HTTPFileClient.ChunkedUpload(file, slot.uploadURL, mime, encrypt) :
+                    null;
+        }
+
+        /** Delete temporary upload file. */
+        void discard() {
+            if (!file.equals(original))
+                delete(file);
+        }
+    }
+
+    private AttachmentManager(Control control, Client client, Database db, Path baseDir) {
         mControl = control;
         mClient = client;
+        Config config = Config.getInstance();
+        mUploadLanes = Math.max(1, config.getInt(Config.NET_UPLOAD_LANES));
+        mDownloadLanes = Math.max(1, config.getInt(Config.NET_DOWNLOAD_LANES));
         mAttachmentDir = baseDir.resolve(ATT_DIRNAME);
         if (mAttachmentDir.toFile().mkdir())
             LOGGER.info("created attachment directory");
@@ -127,42 +243,110 @@ public class AttachmentManager implements Runnable {
         mPreviewDir = baseDir.resolve(PREVIEW_DIRNAME);
         if (mPreviewDir.toFile().mkdir())
             LOGGER.info("created preview directory");
+
+        mStore = new AttachmentStore(db, mAttachmentDir, mPreviewDir);
     }
 
-    static AttachmentManager create(Control control, Client client, Path appDir) {
-        AttachmentManager manager = new AttachmentManager(control, client, appDir);
+    static AttachmentManager create(Control control, Client client, Database db,
+            Path appDir) {
+        AttachmentManager manager = new AttachmentManager(control, client, db, appDir);
 
-        Thread thread = new Thread(manager, "Attachment Transfer");
-        thread.setDaemon(true);
-        thread.start();
+        // large files in one lane don't block small files in the others
+        for (int i = 0; i < manager.mUploadLanes; i++)
+            manager.startLane(manager.mUploadQueue, "Attachment Upload "+i);
+        for (int i = 0; i < manager.mDownloadLanes; i++)
+            manager.startLane(manager.mDownloadQueue, "Attachment Download "+i);
 
         return manager;
     }
 
+    private void startLane(PriorityBlockingQueue<Task> queue, String name) {
+        Thread thread = new Thread(() -> this.run(queue), name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     void queueUpload(OutMessage message) {
-        boolean added = mQueue.offer(new Task.UploadTask(message));
-        if (!added) {
-            LOGGER.warning("can't add upload message to queue");
-        }
+        this.queue(mUploadQueue, new Task.UploadTask(message));
     }
 
     void queueDownload(InMessage message) {
-        boolean added = mQueue.offer(new Task.DownloadTask(message));
+        this.queue(mDownloadQueue, new Task.DownloadTask(message));
+    }
+
+    private void queue(PriorityBlockingQueue<Task> queue, Task task) {
+        KonMessage message = task.message();
+        if (mTasks.putIfAbsent(message.getID(), task) != null) {
+            LOGGER.info("already queued: "+message);
+            return;
+        }
+
+        task.urgent = message.getChat().equals(mVisibleChat);
+        task.sequence = mSequence.getAndIncrement();
+        this.setState(task, TransferState.QUEUED);
+        boolean added = queue.offer(task);
         if (!added) {
-            LOGGER.warning("can't add download message to queue");
+            LOGGER.warning("can't add message to queue");
+        }
+    }
+
+    /** Transfers of the chat shown in the view go first. */
+    void setVisibleChat(Chat chat) {
+        mVisibleChat = chat;
+        this.prioritize(mUploadQueue, chat);
+        this.prioritize(mDownloadQueue, chat);
+    }
+
+    private void prioritize(PriorityBlockingQueue<Task> queue, Chat chat) {
+        for (Task task : queue) {
+            if (!task.urgent && task.message().getChat().equals(chat) && queue.remove(task)) {
+                task.urgent = true;
+                queue.offer(task);
+            }
         }
     }
 
-    private void uploadAsync(OutMessage message) {
+    /** Cancel queued, running or waiting transfer of message attachment. */
+    void cancel(KonMessage message) {
+        Task task = mTasks.remove(message.getID());
+        if (task == null)
+            return;
+
+        LOGGER.info("cancel transfer: "+message);
+        task.transfer.abort();
+        // running and waiting tasks are discarded by lane and timer
+        if (mUploadQueue.remove(task) || mDownloadQueue.remove(task))
+            this.discard(task);
+        this.setState(task, TransferState.CANCELLED);
+    }
+
+    /** Delete data kept for retrying the transfer. */
+    private void discard(Task task) {
+        if (task instanceof Task.UploadTask) {
+            PendingUpload pending = ((Task.UploadTask) task).pending;
+            if (pending != null)
+                pending.discard();
+        } else if (task instanceof Task.DownloadTask) {
+            ((Task.DownloadTask) task).message.getContent().getInAttachment().ifPresent(att ->
+                    HTTPFileClient.discardPartialDownload(att.getURL(), mAttachmentDir));
+        }
+    }
+
+    private void setState(Task task, TransferState state) {
+        task.message().getContent().getAttachment().ifPresent(a -> a.setTransferState(state));
+    }
+
+    private TransferState uploadAsync(Task.UploadTask task) {
+        OutMessage message = task.message;
         OutAttachment attachment = message.getContent().getOutAttachment().orElse(null);
         if (attachment == null) {
             LOGGER.warning("no attachment in message to upload");
-            return;
+            return TransferState.FAILED;
         }
 
         if (!mClient.isConnected()) {
             LOGGER.info("can't upload, not connected");
-            return;
+            return TransferState.NONE;
         }
 
         File original;
@@ -172,78 +356,165 @@ public class AttachmentManager implements Runnable {
             uploadName = URLEncoder.encode(file.getName(), "UTF-8");
         } catch (UnsupportedEncodingException ex) {
             LOGGER.log(Level.WARNING, "can't encode file name", ex);
-            return;
+            return TransferState.FAILED;
         }
         String mime = attachment.getMimeType();
 
+        // if text will be encrypted, always encrypt attachment too
+        boolean encrypt = message.getCoderStatus().getEncryption() == Encryption.DECRYPTED;
+        // encrypt while uploading, without temporary files
+        boolean stream = encrypt && Config.getInstance().getBoolean(Config.NET_STREAM_UPLOAD);
+
         // maybe resize image for smaller payload
+        byte[] resizedData = null;
         if(isImage(mime)) {
             int maxImgSize = Config.getInstance().getInt(Config.NET_MAX_IMG_SIZE);
             if (maxImgSize > 0) {
                 BufferedImage img = MediaUtils.readImage(file).orElse(null);
                 if (img == null) {
                     LOGGER.warning("can't load image");
-                    return;
+                    return TransferState.FAILED;
                 }
                 if (img.getWidth() * img.getHeight() > maxImgSize) {
                     // image needs to be resized
                     BufferedImage resized = MediaUtils.scale(img, maxImgSize);
-                    try {
-                        file = File.createTempFile("kontalk_resized_img_att", ".dat");
-                    } catch (IOException ex) {
-                        LOGGER.log(Level.WARNING, "can't create temporary file", ex);
-                        return;
-                    }
                     mime = RESIZED_IMG_MIME;
-                    boolean succ = MediaUtils.writeImage(resized,
-                            MediaUtils.extensionForMIME(mime),
-                            file);
-                    if (!succ)
-                        return;
+                    if (stream) {
+                        // size is bounded, keep in memory
+                        resizedData = MediaUtils.imageToByteArray(resized,
+                                MediaUtils.extensionForMIME(mime));
+                        if (resizedData.length == 0)
+                            return TransferState.FAILED;
+                    } else {
+                        try {
+                            file = File.createTempFile("kontalk_resized_img_att", ".dat");
+                        } catch (IOException ex) {
+                            LOGGER.log(Level.WARNING, "can't create temporary file", ex);
+                            return TransferState.FAILED;
+                        }
+                        boolean succ = MediaUtils.writeImage(resized,
+                                MediaUtils.extensionForMIME(mime),
+                                file);
+                        if (!succ)
+                            return TransferState.FAILED;
+                    }
                 }
             }
         }
 
-        // if text will be encrypted, always encrypt attachment too
-        boolean encrypt = message.getCoderStatus().getEncryption() == Encryption.DECRYPTED;
-        if (encrypt) {
-            PersonalKey myKey = mControl.myKey().orElse(null);
+        PersonalKey myKey = mControl.myKey().orElse(null);
+        if (encrypt && !stream) {
             File encryptFile = myKey == null ?
                     null :
                     Coder.encryptAttachment(myKey, message, file).orElse(null);
             if (!file.equals(original))
                 delete(file);
             if (encryptFile == null)
-                return;
+                return TransferState.FAILED;
             file = encryptFile;
             // Note: continue using original MIME type, Android client needs it
             //mime = ENCRYPT_MIME;
         }
 
         HTTPFileClient client = this.clientOrNull();
-        if (client == null)
-            return;
+        if (client == null || (stream && myKey == null)) {
+            if (!file.equals(original))
+                delete(file);
+            return TransferState.FAILED;
+        }
 
-        long length = file.length();
+        // NOTE: when streaming, the slot is requested for the plain size,
+        // the encrypted size is only known after the upload. Servers that
+        // enforce the slot size reject streamed uploads, see
+        // Config.NET_STREAM_UPLOAD
+        long length = resizedData != null ? resizedData.length : file.length();
         Slot uploadSlot = mClient.getUploadSlot(uploadName, length, mime);
         if (uploadSlot.uploadURL.toString().isEmpty() ||
                 uploadSlot.downloadURL.toString().isEmpty()) {
             LOGGER.warning("empty slot: "+attachment);
-            return;
+            if (!file.equals(original))
+                delete(file);
+            return TransferState.FAILED;
+        }
+
+        if (!stream) {
+            boolean chunked = Config.getInstance().getBoolean(Config.NET_CHUNKED_UPLOAD);
+            task.pending = new PendingUpload(file, original, mime, uploadSlot, encrypt, chunked);
+            return this.transfer(task);
         }
 
+        // data is encrypted again for each attempt, no retry
         try {
-            client.upload(file, uploadSlot.uploadURL, mime, encrypt);
+            File plainFile = file;
+            byte[] plainData = resizedData;
+            length = client.upload(out -> {
+                try (InputStream in = plainData != null ?
+                        new ByteArrayInputStream(plainData) :
+                        new BufferedInputStream(new FileInputStream(plainFile))) {
+                    if (!Coder.encryptAttachment(myKey, message, in, out))
+                        throw new IOException("can't encrypt attachment");
+                }
+            }, uploadSlot.uploadURL, mime, true, task.transfer);
         } catch (KonException ex) {
             LOGGER.warning("upload failed, attachment: "+attachment);
             message.setStatus(KonMessage.Status.ERROR);
+            if (task.transfer.isAborted())
+                return TransferState.CANCELLED;
             mControl.onException(ex);
-            return;
+            return TransferState.FAILED;
         }
 
-        if (!file.equals(original))
-            delete(file);
+        this.uploaded(message, attachment, uploadSlot, mime, length);
+        return TransferState.NONE;
+    }
 
+    private TransferState transfer(Task.UploadTask task) {
+        OutMessage message = task.message;
+        PendingUpload pending = task.pending;
+        OutAttachment attachment = message.getContent().getOutAttachment().orElse(null);
+        HTTPFileClient client = this.clientOrNull();
+        if (attachment == null || client == null) {
+            pending.discard();
+            return TransferState.FAILED;
+        }
+
+        long offset = pending.chunked != null ? pending.chunked.getOffset() : 0;
+        try {
+            if (pending.chunked != null) {
+                client.upload(pending.chunked, attachment::setUploadProgress, task.transfer);
+            } else {
+                client.upload(pending.file, pending.slot.uploadURL, pending.mime,
+                        pending.encrypt, attachment::setUploadProgress, task.transfer);
+            }
+        } catch (KonException ex) {
+            LOGGER.warning("upload failed, attachment: "+attachment+", attempt="+task.attempt);
+            // acknowledged chunks are progress, count attempts again
+            task.attempt = pending.chunked != null && pending.chunked.getOffset() > offset ?
+                    1 :
+                    task.attempt + 1;
+            if (!task.transfer.isAborted() && RETRY_ERRORS.contains(ex.getError()) &&
+                    task.attempt < MAX_ATTEMPTS) {
+                // file and slot are reused, chunked upload resumes
+                return this.retry(mUploadQueue, task);
+            }
+            pending.discard();
+            attachment.setUploadProgress(-3);
+            message.setStatus(KonMessage.Status.ERROR);
+            if (task.transfer.isAborted())
+                return TransferState.CANCELLED;
+            mControl.onException(ex);
+            return TransferState.FAILED;
+        }
+
+        long length = pending.file.length();
+        pending.discard();
+
+        this.uploaded(message, attachment, pending.slot, pending.mime, length);
+        return TransferState.NONE;
+    }
+
+    private void uploaded(OutMessage message, OutAttachment attachment, Slot uploadSlot,
+            String mime, long length) {
         attachment.setUploaded(uploadSlot.downloadURL, mime, length);
 
         LOGGER.info("upload successful, URL="+uploadSlot.downloadURL);
@@ -253,16 +524,17 @@ public class AttachmentManager implements Runnable {
             mControl.sendMessage(message);
     }
 
-    private void downloadAsync(final InMessage message) {
+    private TransferState downloadAsync(Task.DownloadTask task) {
+        InMessage message = task.message;
         InAttachment attachment = message.getContent().getInAttachment().orElse(null);
         if (attachment == null) {
             LOGGER.warning("no attachment in message to download");
-            return;
+            return TransferState.FAILED;
         }
 
         HTTPFileClient client = this.clientOrNull();
         if (client == null)
-            return;
+            return TransferState.FAILED;
 
         HTTPFileClient.ProgressListener listener = new HTTPFileClient.ProgressListener() {
             @Override
@@ -271,42 +543,116 @@ public class AttachmentManager implements Runnable {
             }
         };
 
+        PersonalKey myKey = mControl.myKey().orElse(null);
+        // set if the data was decrypted while downloading
+        boolean[] decrypted = {false};
+        boolean[] decryptionFailed = {false};
+        // hash of the plain data for the store, computed while writing
+        MessageDigest digest = AttachmentStore.newDigest();
+        HTTPFileClient.ContentHandler handler = (in, outFile) -> {
+            digest.reset();
+            if (myKey != null && PGPUtils.peekEncryptedData(in)) {
+                // decrypt on the fly, plain data is written to the final file
+                attachment.setFile(outFile.getName(), true);
+                decrypted[0] = Coder.decryptAttachment(myKey, attachment,
+                        message.getContact(), in, outFile, digest);
+                if (!decrypted[0]) {
+                    decryptionFailed[0] = true;
+                    delete(outFile);
+                    throw new IOException("can't decrypt attachment");
+                }
+                return;
+            }
+            try (OutputStream out = new DigestOutputStream(new FileOutputStream(outFile),
+                    digest)) {
+                IOUtils.copy(in, out);
+            }
+        };
+
         Path path;
         try {
-            path = client.download(attachment.getURL(), mAttachmentDir, listener);
+            path = client.download(attachment.getURL(), mAttachmentDir, listener, handler,
+                    task.transfer);
         } catch (KonException ex) {
-            LOGGER.warning("download failed, URL="+attachment.getURL());
+            LOGGER.warning("download failed, URL="+attachment.getURL()+", attempt="+task.attempt);
+            task.attempt++;
+            if (!task.transfer.isAborted() && !decryptionFailed[0] &&
+                    RETRY_ERRORS.contains(ex.getError()) && task.attempt < MAX_ATTEMPTS) {
+                // received data is kept, retry resumes
+                return this.retry(mDownloadQueue, task);
+            }
+            HTTPFileClient.discardPartialDownload(attachment.getURL(), mAttachmentDir);
+            if (task.transfer.isAborted())
+                return TransferState.CANCELLED;
             mControl.onException(ex);
-            return;
+            return TransferState.FAILED;
         }
 
         if (path.toString().isEmpty()) {
             LOGGER.warning("file path is empty");
-            return;
-        }
-
-        boolean encrypted = PGPUtils.isEncryptedFile(path);
-        if (encrypted) {
-            path = MediaUtils.renameFile(path,
-                    AttachmentManager.ENCRYPT_PREFIX + path.getFileName().toString());
+            return TransferState.FAILED;
         }
 
-        LOGGER.info("successful, saved to file: "+path);
-        attachment.setFile(path.getFileName().toString(), encrypted);
+        String stored = "";
+        if (decrypted[0]) {
+            stored = mStore.putAttachment(message.getID(), attachment.getFilePath(), digest);
+        } else {
+            boolean encrypted = PGPUtils.isEncryptedFile(path);
+            if (encrypted) {
+                path = MediaUtils.renameFile(path,
+                        AttachmentManager.ENCRYPT_PREFIX + path.getFileName().toString());
+            }
 
-        if (encrypted) {
-            // decrypt file
-            mControl.myKey().ifPresent(mk ->
-                    Coder.decryptAttachment(mk, attachment, message.getContact()));
+            LOGGER.info("successful, saved to file: "+path);
+            attachment.setFile(path.getFileName().toString(), encrypted);
+
+            if (encrypted) {
+                // decrypt file
+                mControl.myKey().ifPresent(mk ->
+                        Coder.decryptAttachment(mk, attachment, message.getContact()));
+                if (!attachment.isEncrypted())
+                    stored = mStore.putAttachment(message.getID(), attachment.getFilePath());
+            } else {
+                stored = mStore.putAttachment(message.getID(), path, digest);
+            }
         }
+        if (!stored.isEmpty())
+            attachment.setStoredFile(stored);
 
         // create preview if not in message
         if (!message.getContent().getPreview().isPresent())
             this.mayCreateImagePreview(message);
+
+        return TransferState.NONE;
+    }
+
+    private TransferState retry(PriorityBlockingQueue<Task> queue, Task task) {
+        // exponential backoff
+        long delay = Math.min(RETRY_BASE_DELAY << (task.attempt - 1), RETRY_MAX_DELAY);
+        LOGGER.info("retry in "+delay+"s, attempt="+task.attempt);
+        this.setState(task, TransferState.WAITING);
+        mRetryTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                if (mTasks.get(task.message().getID()) != task) {
+                    // cancelled while waiting
+                    AttachmentManager.this.discard(task);
+                    return;
+                }
+                AttachmentManager.this.setState(task, TransferState.QUEUED);
+                queue.offer(task);
+            }
+        }, TimeUnit.SECONDS.toMillis(delay));
+        return TransferState.WAITING;
     }
 
     void savePreview(Preview preview, int messageID) {
-        this.writePreview(preview.getData(), messageID, preview.getMimeType());
+        if (preview.getHash().isEmpty()) {
+            LOGGER.warning("no preview data");
+            return;
+        }
+        mStore.putPreview(messageID, preview.getData(), preview.getHash(),
+                preview.getMimeType());
     }
 
     void mayCreateImagePreview(KonMessage message) {
@@ -339,8 +685,8 @@ public class AttachmentManager implements Runnable {
         if (bytes.length <= 0)
             return;
 
-        this.writePreview(bytes, message.getID(), THUMBNAIL_MIME);
         Preview preview = new Preview(bytes, THUMBNAIL_MIME);
+        this.savePreview(preview, message.getID());
         LOGGER.info("created: "+preview);
 
         message.setPreview(preview);
@@ -350,50 +696,66 @@ public class AttachmentManager implements Runnable {
         return mAttachmentDir;
     }
 
-    private void writePreview(byte[] data, int messageID, String mimeType) {
-        String filename = previewFilename(messageID, mimeType);
-
-        File newFile = mPreviewDir.resolve(filename).toFile();
-        try {
-            FileUtils.writeByteArrayToFile(newFile, data);
-        } catch (IOException ex) {
-            LOGGER.log(Level.WARNING, "can't save preview file", ex);
-            return;
-        }
-
-        LOGGER.config("to file: "+newFile);
+    /** Delete stored files of deleted messages in the background. */
+    void collectGarbage() {
+        mStoreExecutor.execute(mStore::collectGarbage);
     }
 
+    /** File name of preview saved per message, before the attachment store. */
     public static String previewFilename(int messageID, String mimeType) {
         return Integer.toString(messageID) + "_bob." + MediaUtils.extensionForMIME(mimeType);
     }
 
-    private HTTPFileClient clientOrNull(){
+    private synchronized HTTPFileClient clientOrNull(){
         PersonalKey key = mControl.myKey().orElse(null);
         if (key == null)
             return null;
 
-        return new HTTPFileClient(key.getServerLoginKey(),
-                key.getBridgeCertificate(),
-                Config.getInstance().getBoolean(Config.SERV_CERT_VALIDATION));
+        if (key != mHTTPClientKey) {
+            // new account
+            if (mHTTPClient != null)
+                mHTTPClient.close();
+            mHTTPClient = new HTTPFileClient(key.getServerLoginKey(),
+                    key.getBridgeCertificate(),
+                    Config.getInstance().getBoolean(Config.SERV_CERT_VALIDATION),
+                    mUploadLanes + mDownloadLanes);
+            mHTTPClientKey = key;
+        }
+        return mHTTPClient;
     }
 
-    @Override
-    public void run() {
+    private void run(PriorityBlockingQueue<Task> queue) {
         while (true) {
             Task t;
             try {
                 // blocking
-                t = mQueue.take();
+                t = queue.take();
             } catch (InterruptedException ex) {
                 LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
                 return;
             }
+            int id = t.message().getID();
+            if (mTasks.get(id) != t) {
+                // cancelled
+                this.discard(t);
+                continue;
+            }
+
+            this.setState(t, TransferState.RUNNING);
+            TransferState state = TransferState.FAILED;
             if (t instanceof Task.UploadTask) {
-                this.uploadAsync(((Task.UploadTask) t).message);
+                Task.UploadTask task = (Task.UploadTask) t;
+                state = task.pending == null ?
+                        this.uploadAsync(task) :
+                        this.transfer(task);
             } else if (t instanceof Task.DownloadTask) {
-                this.downloadAsync(((Task.DownloadTask) t).message);
+                state = this.downloadAsync((Task.DownloadTask) t);
             }
+
+            if (state == TransferState.WAITING)
+                continue;
+            mTasks.remove(id, t);
+            this.setState(t, state);
         }
     }
 
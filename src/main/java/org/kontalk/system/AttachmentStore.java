@@ -0,0 +1,209 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.kontalk.model.message.KonMessage;
+import org.kontalk.persistence.Database;
+import org.kontalk.util.MediaUtils;
+
+/**
+ * Content-addressed store for received attachment and preview files.
+ *
+ * Files are stored under the SHA-256 hash of their content, the same file
+ * in many messages is only stored once. Messages reference stored files in
+ * the database, files without references are deleted by the garbage
+ * collection.
+ *
+ * Attachments are saved with their original file name in a directory named
+ * after the hash, previews are named after the hash.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public final class AttachmentStore {
+    private static final Logger LOGGER = Logger.getLogger(AttachmentStore.class.getName());
+
+    public static final String TABLE = "attachment_files";
+    public static final String COL_MESSAGE_ID = "message_id";
+    private static final String COL_FILE = "file";
+    public static final String SCHEMA = "( " +
+            Database.SQL_ID +
+            COL_MESSAGE_ID + " INTEGER NOT NULL, " +
+            // stored file, relative to application directory
+            COL_FILE + " TEXT NOT NULL, " +
+            "FOREIGN KEY ("+COL_MESSAGE_ID+") REFERENCES "+KonMessage.TABLE+" (_id) " +
+            ")";
+    public static final String[] INDICES = {
+            // deleting references of messages
+            COL_MESSAGE_ID
+    };
+
+    // names of stored files, other files in the directories are not touched
+    private static final Pattern STORED_PATTERN = Pattern.compile("[0-9a-f]{64}(\\.\\w+)?");
+
+    private final Database mDB;
+    private final Path mAttachmentDir;
+    private final Path mPreviewDir;
+
+    AttachmentStore(Database db, Path attachmentDir, Path previewDir) {
+        mDB = db;
+        mAttachmentDir = attachmentDir;
+        mPreviewDir = previewDir;
+    }
+
+    /** Digest for hashing file content while it is written. */
+    static MessageDigest newDigest() {
+        return DigestUtils.getSha256Digest();
+    }
+
+    public static String hash(byte[] data) {
+        return DigestUtils.sha256Hex(data);
+    }
+
+    public static String previewFilename(String hash, String mimeType) {
+        return hash + "." + MediaUtils.extensionForMIME(mimeType);
+    }
+
+    /**
+     * Move a received attachment file into the store. The file is deleted if
+     * the same content is already stored.
+     * @param digest digest of the file content
+     * @return name of the stored file relative to the attachment directory,
+     * empty if the file could not be moved
+     */
+    synchronized String putAttachment(int messageID, Path file, MessageDigest digest) {
+        String hash = Hex.encodeHexString(digest.digest());
+        Path dir = mAttachmentDir.resolve(hash);
+        File[] stored = dir.toFile().listFiles();
+        String name;
+        try {
+            if (stored != null && stored.length > 0) {
+                name = stored[0].getName();
+                Files.delete(file);
+                LOGGER.info("already stored: "+hash);
+            } else {
+                name = file.getFileName().toString();
+                Files.createDirectories(dir);
+                Files.move(file, dir.resolve(name));
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't store attachment file", ex);
+            return "";
+        }
+
+        this.reference(messageID, AttachmentManager.ATT_DIRNAME + "/" + hash);
+        return hash + "/" + name;
+    }
+
+    /**
+     * Move a file decrypted after the download into the store, the content
+     * hash is computed from the file.
+     */
+    synchronized String putAttachment(int messageID, Path file) {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(file)) {
+            DigestUtils.updateDigest(digest, in);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't hash attachment file", ex);
+            return "";
+        }
+        return this.putAttachment(messageID, file, digest);
+    }
+
+    /** Write preview data if the same preview is not already stored. */
+    synchronized void putPreview(int messageID, byte[] data, String hash, String mimeType) {
+        String filename = previewFilename(hash, mimeType);
+        File file = mPreviewDir.resolve(filename).toFile();
+        if (!file.exists()) {
+            try {
+                FileUtils.writeByteArrayToFile(file, data);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't save preview file", ex);
+                return;
+            }
+            LOGGER.config("to file: "+file);
+        }
+
+        this.reference(messageID, AttachmentManager.PREVIEW_DIRNAME + "/" + filename);
+    }
+
+    private void reference(int messageID, String file) {
+        int id = mDB.execInsert(TABLE, Arrays.asList(messageID, file));
+        if (id < 0)
+            LOGGER.warning("can't reference stored file: "+file);
+    }
+
+    /**
+     * Delete stored files that are not referenced by any message.
+     * @return number of deleted files
+     */
+    synchronized int collectGarbage() {
+        // readers only see committed changes
+        mDB.commit();
+        Set<String> referenced = new HashSet<>();
+        try (Database.Query query = mDB.execSelectAll(TABLE)) {
+            ResultSet resultSet = query.resultSet();
+            while (resultSet.next())
+                referenced.add(resultSet.getString(COL_FILE));
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't load references", ex);
+            return 0;
+        }
+
+        int deleted = sweep(mAttachmentDir, AttachmentManager.ATT_DIRNAME, referenced) +
+                sweep(mPreviewDir, AttachmentManager.PREVIEW_DIRNAME, referenced);
+        LOGGER.info("deleted stored files: "+deleted);
+        return deleted;
+    }
+
+    private static int sweep(Path dir, String dirName, Set<String> referenced) {
+        File[] files = dir.toFile().listFiles();
+        if (files == null)
+            return 0;
+
+        int deleted = 0;
+        for (File file : files) {
+            if (!STORED_PATTERN.matcher(file.getName()).matches() ||
+                    referenced.contains(dirName + "/" + file.getName()))
+                continue;
+            if (FileUtils.deleteQuietly(file))
+                deleted++;
+            else
+                LOGGER.warning("can't delete stored file: "+file);
+        }
+        return deleted;
+    }
+}
@@ -108,6 +108,7 @@ public final class Control {
     private final RosterHandler mRosterHandler;
     private final AvatarHandler mAvatarHandler;
     private final GroupControl mGroupControl;
+    private final DecryptionQueue mDecryptionQueue;
 
     private boolean mShuttingDown = false;
     private Timer mRetryTimer = null;
@@ -128,15 +129,17 @@ public final class Control {
 
         mClient = Client.create(this, appDir);
         mChatStateManager = new ChatStateManager(mClient);
-        mAttachmentManager = AttachmentManager.create(this, mClient, appDir);
+        mAttachmentManager = AttachmentManager.create(this, mClient, mDB, appDir);
         mRosterHandler = new RosterHandler(this, mClient, mModel);
         mAvatarHandler = new AvatarHandler(mClient, mModel);
         mGroupControl = new GroupControl(this, mModel);
+        mDecryptionQueue = new DecryptionQueue();
     }
 
     public void launch(boolean ui) {
 
         mModel.load();
+        Coder.warmUpKeys(mModel.contacts().getAll(true, true));
 
         if (ui) {
             View view = View.create(mViewControl, mModel).orElse(null);
@@ -171,6 +174,7 @@ public final class Control {
         mViewControl.changed(new ViewEvent.StatusChange(Status.SHUTTING_DOWN,
                 EnumSet.noneOf(FeatureDiscovery.Feature.class)));
 
+        mDecryptionQueue.shutDown();
         mModel.onShutDown();
         try {
             mDB.close();
@@ -268,10 +272,14 @@ public final class Control {
     /**
      * All-in-one method for a new incoming message (except handling server
      * receipts): Create, save and process the message.
+     * Decryption and processing are done asynchronously in arrival order.
+     * @param onStored run when the message is committed to the database,
+     * e.g. to send a delivery receipt
      */
     public void onNewInMessage(MessageIDs ids,
             Optional<Date> serverDate,
-            MessageContent content) {
+            MessageContent content,
+            Runnable onStored) {
         LOGGER.info("new incoming message, "+ids);
 
         Contact sender = this.getOrCreateContact(ids.jid).orElse(null);
@@ -282,10 +290,22 @@ public final class Control {
 
         // decrypt message now to get possible group data
         ProtoMessage protoMessage = new ProtoMessage(sender, content);
-        if (protoMessage.isEncrypted()) {
-            this.myKey().ifPresent(mk -> Coder.decryptMessage(mk, protoMessage));
-        }
+        mDecryptionQueue.queue(
+                () -> {
+                    if (protoMessage.isEncrypted())
+                        this.myKey().ifPresent(mk -> Coder.decryptMessage(mk, protoMessage));
+                },
+                () -> {
+                    this.onDecryptedInMessage(ids, serverDate, content, sender, protoMessage);
+                    mDB.afterCommit(onStored);
+                });
+    }
 
+    private void onDecryptedInMessage(MessageIDs ids,
+            Optional<Date> serverDate,
+            MessageContent content,
+            Contact sender,
+            ProtoMessage protoMessage) {
         // NOTE: decryption must be successful to select group chat
         GroupMetaData groupData = content.getGroupData().orElse(null);
         Chat chat = groupData != null ?
@@ -325,6 +345,11 @@ public final class Control {
     }
 
     public void onMessageReceived(MessageIDs ids, Date receivedDate) {
+        // after messages received before
+        mDecryptionQueue.queue(() -> this.onMessageReceivedInOrder(ids, receivedDate));
+    }
+
+    private void onMessageReceivedInOrder(MessageIDs ids, Date receivedDate) {
         OutMessage message = this.findMessage(ids).orElse(null);
         if (message == null)
             return;
@@ -333,6 +358,11 @@ public final class Control {
     }
 
     public void onMessageError(MessageIDs ids, StanzaError.Condition condition, String errorText) {
+        mDecryptionQueue.queue(() -> this.onMessageErrorInOrder(ids, condition, errorText));
+    }
+
+    private void onMessageErrorInOrder(MessageIDs ids, StanzaError.Condition condition,
+            String errorText) {
         OutMessage message = this.findMessage(ids).orElse(null);
         if (message == null)
             return ;
@@ -345,6 +375,12 @@ public final class Control {
     public void onChatStateNotification(MessageIDs ids,
             Optional<Date> serverDate,
             ChatState chatState) {
+        mDecryptionQueue.queue(() -> this.onChatStateInOrder(ids, serverDate, chatState));
+    }
+
+    private void onChatStateInOrder(MessageIDs ids,
+            Optional<Date> serverDate,
+            ChatState chatState) {
         if (serverDate.isPresent()) {
             long diff = new Date().getTime() - serverDate.get().getTime();
             if (diff > TimeUnit.SECONDS.toMillis(10)) {
@@ -872,6 +908,7 @@ public final class Control {
             }
 
             mModel.chats().delete(chat);
+            mAttachmentManager.collectGarbage();
         }
 
         public void leaveGroupChat(GroupChat chat) {
@@ -886,6 +923,10 @@ public final class Control {
             mChatStateManager.handleOwnChatStateEvent(chat, state);
         }
 
+        public void setCurrentChat(Chat chat) {
+            mAttachmentManager.setVisibleChat(chat);
+        }
+
         /* messages */
 
         public void decryptAgain(InMessage message) {
@@ -896,6 +937,10 @@ public final class Control {
             Control.this.download(message);
         }
 
+        public void cancelTransfer(KonMessage message) {
+            mAttachmentManager.cancel(message);
+        }
+
         public void sendText(Chat chat, String text) {
             this.sendNewMessage(chat, text, Paths.get(""));
         }
@@ -0,0 +1,164 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decrypt incoming messages in parallel, but handle them in arrival order.
+ *
+ * Decryption runs in a pool of worker threads. One release thread waits for
+ * the decryption of the oldest queued message and then handles it, so
+ * messages are added to the model one after another in queue order.
+ * Other incoming events (receipts, chat states, errors) are queued without
+ * decryption, so they are never handled before earlier messages.
+ * Queuing blocks if too many messages are in progress.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class DecryptionQueue {
+    private static final Logger LOGGER = Logger.getLogger(DecryptionQueue.class.getName());
+
+    /** Maximum number of messages in progress. */
+    static final int MAX_QUEUED = 1000;
+
+    private static final int SHUTDOWN_TIMEOUT = 10; // seconds
+
+    private final ExecutorService mWorkers;
+    // in queue order
+    private final BlockingQueue<Item> mItems = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private final Thread mReleaseThread;
+
+    DecryptionQueue() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    DecryptionQueue(int workers) {
+        mWorkers = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "Decryption Worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mReleaseThread = new Thread(this::release, "Decryption Release");
+        mReleaseThread.setDaemon(true);
+        mReleaseThread.start();
+    }
+
+    /**
+     * Queue a message.
+     * @param decrypt decryption, run in a worker thread
+     * @param handle handling after decryption, run in queue order
+     */
+    void queue(Runnable decrypt, Runnable handle) {
+        FutureTask<Void> decryption = new FutureTask<>(decrypt, null);
+        try {
+            mItems.put(new Item(decryption, handle));
+            mWorkers.execute(decryption);
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "interrupted, message not queued", ex);
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException ex) {
+            // shut down, release thread will not wait forever
+            decryption.cancel(false);
+            LOGGER.warning("shut down, message not decrypted");
+        }
+    }
+
+    /**
+     * Queue handling that needs no decryption.
+     * @param handle run in queue order
+     */
+    void queue(Runnable handle) {
+        FutureTask<Void> done = new FutureTask<>(() -> {}, null);
+        done.run();
+        try {
+            mItems.put(new Item(done, handle));
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "interrupted, not queued", ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void release() {
+        while (true) {
+            Item item;
+            try {
+                item = mItems.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (item == Item.STOP)
+                return;
+
+            try {
+                item.decryption.get();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (CancellationException ex) {
+                continue;
+            } catch (ExecutionException ex) {
+                LOGGER.log(Level.WARNING, "decryption failed", ex);
+            }
+
+            try {
+                item.handle.run();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "can't handle message", ex);
+            }
+        }
+    }
+
+    /** Wait for queued messages to be handled, then stop all threads. */
+    void shutDown() {
+        mWorkers.shutdown();
+        try {
+            if (!mItems.offer(Item.STOP, SHUTDOWN_TIMEOUT, TimeUnit.SECONDS) ||
+                    !mWorkers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS))
+                LOGGER.warning("timeout, not all messages decrypted");
+            mReleaseThread.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT));
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "interrupted", ex);
+            Thread.currentThread().interrupt();
+        }
+        mWorkers.shutdownNow();
+        mReleaseThread.interrupt();
+    }
+
+    private static final class Item {
+        static final Item STOP = new Item(null, null);
+
+        final FutureTask<Void> decryption;
+        final Runnable handle;
+
+        Item(FutureTask<Void> decryption, Runnable handle) {
+            this.decryption = decryption;
+            this.handle = handle;
+        }
+    }
+}
@@ -34,7 +34,10 @@ import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Optional;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,6 +57,17 @@ public class MediaUtils {
 
     private static final String DEFAULT_EXT = "dat";
 
+    private static final Set<String> COMPRESSED_MIMES = new HashSet<>(Arrays.asList(
+            "image/jpeg", "image/png", "image/gif", "image/webp",
+            "application/zip", "application/gzip", "application/x-gzip",
+            "application/x-bzip2", "application/x-xz", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.android.package-archive"));
+    private static final Set<String> UNCOMPRESSED_AUDIO_MIMES = new HashSet<>(Arrays.asList(
+            "audio/wav", "audio/x-wav", "audio/basic", "audio/x-aiff"));
+    private static final Set<String> COMPRESSIBLE_MIMES = new HashSet<>(Arrays.asList(
+            "image/bmp", "image/svg+xml", "application/json", "application/xml",
+            "application/javascript", "application/x-tar"));
+
     private MediaUtils() {}
 
     public static File nonExistingFileForPath(Path path) {
@@ -130,6 +144,20 @@ public class MediaUtils {
         return mimeType.startsWith("image");
     }
 
+    /** If data of the MIME type is compressed and won't get smaller. */
+    public static boolean isCompressed(String mimeType) {
+        if (mimeType.startsWith("video/"))
+            return true;
+        if (mimeType.startsWith("audio/"))
+            return !UNCOMPRESSED_AUDIO_MIMES.contains(mimeType);
+        return COMPRESSED_MIMES.contains(mimeType);
+    }
+
+    /** If data of the MIME type compresses well. */
+    public static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text/") || COMPRESSIBLE_MIMES.contains(mimeType);
+    }
+
     public enum Sound{NOTIFICATION}
 
     private static OggClip mAudioClip = null;
@@ -0,0 +1,119 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.view;
+
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Observable;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers changes of observed (model) objects from background threads to
+ * view observers on the EDT, batched per frame.
+ *
+ * All changes posted within one frame are delivered together in one EDT task,
+ * in the order they were posted. A change of the same object with the same
+ * argument (changed field) is delivered only once per observer, at the
+ * position it was posted last.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class ChangeBus {
+    private static final Logger LOGGER = Logger.getLogger(ChangeBus.class.getName());
+
+    /** Frame length in milliseconds. */
+    private static final int FRAME_DELAY = 16;
+
+    // changes of current frame, in order of last change
+    private static final Set<Change> PENDING = new LinkedHashSet<>();
+
+    private static final Timer TIMER = new Timer(FRAME_DELAY, e -> flush());
+    static {
+        TIMER.setRepeats(false);
+    }
+
+    private ChangeBus() {}
+
+    /** Post a change from a background thread. */
+    static void post(ObserverTrait observer, Observable o, Object arg) {
+        Change change = new Change(observer, o, arg);
+        synchronized(PENDING) {
+            boolean start = PENDING.isEmpty();
+            // move repeated change behind the changes posted in between
+            PENDING.remove(change);
+            PENDING.add(change);
+            if (start)
+                TIMER.start();
+        }
+    }
+
+    private static void flush() {
+        List<Change> changes;
+        synchronized(PENDING) {
+            changes = new ArrayList<>(PENDING);
+            PENDING.clear();
+        }
+
+        for (Change change : changes) {
+            try {
+                change.observer.updateOnEDT(change.observable, change.arg);
+            } catch (RuntimeException ex) {
+                // don't lose the other changes
+                LOGGER.log(Level.WARNING, "can't update view", ex);
+            }
+        }
+    }
+
+    // identity of observer and observed object; models override equals()
+    private static final class Change {
+        final ObserverTrait observer;
+        final Observable observable;
+        final Object arg;
+
+        Change(ObserverTrait observer, Observable observable, Object arg) {
+            this.observer = observer;
+            this.observable = observable;
+            this.arg = arg;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+
+            if (!(o instanceof Change))
+                return false;
+
+            Change oChange = (Change) o;
+            return observer == oChange.observer && observable == oChange.observable &&
+                    Objects.equals(arg, oChange.arg);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(observer) +
+                    System.identityHashCode(observable)) + Objects.hashCode(arg);
+        }
+    }
+}
@@ -24,7 +24,10 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import com.alee.extended.panel.GroupPanel;
@@ -50,6 +53,9 @@ final class ChatListView extends ListView<Chat> {
 
     private final ChatList mChatList;
 
+    /** Rank of chats with messages matching the current search, 0 is best. */
+    private Map<Chat, Integer> mSearchRanks = Collections.emptyMap();
+
     ChatListView(final View view, ChatList chatList) {
         super(view,
                 new FlyweightChatItem(),
@@ -69,6 +75,21 @@ final class ChatListView extends ListView<Chat> {
         this.setSelectedItem(i);
     }
 
+    @Override
+    void filterItems(String search) {
+        // hits are ordered by their best matching message
+        Map<Chat, Integer> ranks = new HashMap<>();
+        if (!search.isEmpty())
+            mView.searchMessages(search).keySet().forEach(chat -> ranks.put(chat, ranks.size()));
+        mSearchRanks = ranks;
+        super.filterItems(search);
+    }
+
+    @Override
+    protected boolean matches(Chat value, String search) {
+        return super.matches(value, search) || mSearchRanks.containsKey(value);
+    }
+
     void save() {
         Config.getInstance().setProperty(Config.VIEW_SELECTED_CHAT,
                 this.getSelectedRow());
@@ -76,6 +97,12 @@ final class ChatListView extends ListView<Chat> {
 
     @Override
     public int compare(Chat c1, Chat c2) {
+        // best matching chats first when searching
+        int rank = mSearchRanks.getOrDefault(c1, Integer.MAX_VALUE);
+        int oRank = mSearchRanks.getOrDefault(c2, Integer.MAX_VALUE);
+        if (rank != oRank)
+            return Integer.compare(rank, oRank);
+
         KonMessage m = c1.getMessages().getLast().orElse(null);
         KonMessage oM = c2.getMessages().getLast().orElse(null);
         return m != null && oM != null ?
@@ -209,7 +236,9 @@ final class ChatListView extends ListView<Chat> {
             mAvatar.setAvatarImage(value);
 
             // title
-            mTitleLabel.setText(Utils.chatTitle(value));
+            String title = Utils.chatTitle(value);
+            int unread = value.getUnreadCount();
+            mTitleLabel.setText(unread > 0 ? title + " (" + unread + ")" : title);
             if (value.isGroupChat())
                 mTitleLabel.setForeground(View.DARK_GREEN);
 
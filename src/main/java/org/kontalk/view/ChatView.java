@@ -22,6 +22,7 @@ import javax.swing.Icon;
 import javax.swing.JFileChooser;
 import javax.swing.JViewport;
 import javax.swing.SwingUtilities;
+import java.awt.Adjustable;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
@@ -104,6 +105,8 @@ final class ChatView extends WebPanel implements ObserverTrait {
 
     private boolean mScrollDown = false;
     private boolean mAttSupported = false;
+    // search applied to shown message lists
+    private String mSearch = "";
 
     ChatView(View view) {
         mView = view;
@@ -157,8 +160,26 @@ final class ChatView extends WebPanel implements ObserverTrait {
                 // scrolling down WHILE rendering until the final bottom is reached
                 if (e.getValueIsAdjusting())
                     mScrollDown = false;
-                if (mScrollDown)
+                if (mScrollDown) {
                     e.getAdjustable().setValue(e.getAdjustable().getMaximum());
+                    return;
+                }
+
+                MessageList view = ChatView.this.currentMessageListOrNull();
+                if (view == null)
+                    return;
+                Adjustable adj = e.getAdjustable();
+                if (adj.getMaximum() <= adj.getVisibleAmount())
+                    // nothing to scroll
+                    return;
+                // load older messages on demand when scrolled to the top and
+                // release them again when back at the bottom
+                if (e.getValue() == adj.getMinimum()) {
+                    view.loadOlderMessages();
+                } else if (!e.getValueIsAdjusting() &&
+                        e.getValue() + adj.getVisibleAmount() >= adj.getMaximum()) {
+                    view.evictOlderMessages();
+                }
             }
         });
         mScrollPane.setViewport(new WebViewport() {
@@ -237,6 +258,7 @@ final class ChatView extends WebPanel implements ObserverTrait {
     }
 
     void filterCurrentChat(String searchText) {
+        mSearch = searchText;
         MessageList view = this.currentMessageListOrNull();
         if (view == null)
             return;
@@ -244,9 +266,11 @@ final class ChatView extends WebPanel implements ObserverTrait {
     }
 
     void showChat(Chat chat) {
-        Chat oldChat = this.getCurrentChat().orElse(null);
-        if (oldChat != null)
-            oldChat.deleteObserver(this);
+        MessageList oldView = this.currentMessageListOrNull();
+        if (oldView != null) {
+            oldView.getChat().deleteObserver(this);
+            oldView.evictOlderMessages();
+        }
 
         chat.addObserver(this);
 
@@ -256,8 +280,13 @@ final class ChatView extends WebPanel implements ObserverTrait {
             mMessageListCache.put(chat, newMessageList);
         }
         // set to current chat
-        mScrollPane.getViewport().setView(mMessageListCache.get(chat));
+        MessageList messageList = mMessageListCache.get(chat);
+        mScrollPane.getViewport().setView(messageList);
+        // cached lists may be filtered for an older search
+        messageList.filterItems(mSearch);
+        messageList.showBestSearchHit();
         this.onChatChange();
+        mView.getControl().setCurrentChat(chat);
 
         chat.setRead();
     }
@@ -89,6 +89,8 @@ abstract class ListView<V extends Observable & Searchable>
 
     private WebCustomTooltip mTip = null;
 
+    private boolean mRenderScheduled = false;
+
     // using legacy lib, raw types extend Object
     @SuppressWarnings("unchecked")
     ListView(View view,
@@ -132,7 +134,7 @@ abstract class ListView<V extends Observable & Searchable>
             public boolean include(Entry<? extends DefaultTableModel, ? extends Integer> entry) {
                 V v = (V) entry.getValue(0);
                 return (!filterSelected && v.equals(ListView.this.getSelectedValue().orElse(null)))
-                               || v.contains(mSearch);
+                               || ListView.this.matches(v, mSearch);
             }
         };
         mRowSorter.setRowFilter(rowFilter);
@@ -344,12 +346,24 @@ abstract class ListView<V extends Observable & Searchable>
         mRowSorter.sort();
     }
 
+    /** Return if the value should be shown for the search string. */
+    protected boolean matches(V value, String search) {
+        return value.contains(search);
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public void updateOnEDT(Observable o, Object arg) {
         if (o == null || mVClass.isAssignableFrom(o.getClass())) {
-            // render everything again (and update sorting)
-            updateRowRendering(0, this.getRowCount() -1);
+            // render everything again (and update sorting), only once for
+            // all items changed in a frame
+            if (mRenderScheduled)
+                return;
+            mRenderScheduled = true;
+            SwingUtilities.invokeLater(() -> {
+                mRenderScheduled = false;
+                this.updateRowRendering(0, this.getRowCount() -1);
+            });
             return;
         }
         this.updateOnEDT(arg);
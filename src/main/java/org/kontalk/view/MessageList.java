@@ -50,7 +50,9 @@ import java.awt.datatransfer.Transferable;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -73,11 +75,13 @@ import org.kontalk.crypto.Coder;
 import org.kontalk.misc.JID;
 import org.kontalk.model.Contact;
 import org.kontalk.model.chat.Chat;
+import org.kontalk.model.chat.ChatMessages;
 import org.kontalk.model.message.InMessage;
 import org.kontalk.model.message.KonMessage;
 import org.kontalk.model.message.MessageContent.Attachment;
 import org.kontalk.model.message.MessageContent.GroupCommand;
 import org.kontalk.model.message.MessageContent.InAttachment;
+import org.kontalk.model.message.MessageContent.OutAttachment;
 import org.kontalk.model.message.OutMessage;
 import org.kontalk.model.message.Transmission;
 import org.kontalk.persistence.Config;
@@ -110,6 +114,9 @@ final class MessageList extends ListView<KonMessage> {
 
     private Background mBackground = null;
 
+    /** IDs of messages matching the current search, best matching first. */
+    private Set<Integer> mSearchHits = Collections.emptySet();
+
     MessageList(View view, ChatView chatView, Chat chat) {
         // render and editor item are equal (but not the same!)
         super(view,
@@ -157,7 +164,7 @@ final class MessageList extends ListView<KonMessage> {
 
         // check for new messages to add
         if ((arg == null || arg == Chat.ViewChange.NEW_MESSAGE) &&
-                this.getModel().getRowCount() < mChat.getMessages().size()) {
+                this.getModel().getRowCount() != mChat.getMessages().size()) {
             this.insertMessages();
         }
 
@@ -183,6 +190,65 @@ final class MessageList extends ListView<KonMessage> {
         }
     }
 
+    /** Load and show the next page of older messages (if any). */
+    void loadOlderMessages() {
+        ChatMessages messages = mChat.getMessages();
+        if (!messages.hasOlder())
+            return;
+
+        int added = messages.loadOlder();
+        if (added == 0)
+            return;
+
+        this.sync(messages.getAll());
+        // keep the previously first message in view
+        this.scrollToRow(added);
+    }
+
+    @Override
+    void filterItems(String search) {
+        // only loaded messages are shown, the index also finds older ones
+        mSearchHits = search.isEmpty() ?
+                Collections.emptySet() :
+                new LinkedHashSet<>(mView.searchMessages(mChat, search));
+        super.filterItems(search);
+    }
+
+    @Override
+    protected boolean matches(KonMessage value, String search) {
+        return super.matches(value, search) || mSearchHits.contains(value.getID());
+    }
+
+    /** Show the best matching message of the current search. */
+    void showBestSearchHit() {
+        if (!mSearchHits.isEmpty())
+            this.showMessage(mSearchHits.iterator().next());
+    }
+
+    /**
+     * Load older messages down to the message with the given ID if needed,
+     * select and show it.
+     */
+    private void showMessage(int messageID) {
+        ChatMessages messages = mChat.getMessages();
+        if (messages.loadOlderUntil(messageID) > 0)
+            this.sync(messages.getAll());
+
+        for (int i = 0; i < this.getRowCount(); i++) {
+            if (this.getDisplayedValueAt(i).getID() == messageID) {
+                this.setSelectedItem(i);
+                this.scrollToRow(i);
+                return;
+            }
+        }
+    }
+
+    /** Remove older messages out of view from memory. */
+    void evictOlderMessages() {
+        if (mChat.getMessages().evictOlder())
+            this.sync(mChat.getMessages().getAll());
+    }
+
     private void setBackground(Chat.ViewSettings s) {
         // simply overwrite
         mBackground = mChatView.createBGOrNull(s);
@@ -257,6 +323,19 @@ final class MessageList extends ListView<KonMessage> {
             }
         }
 
+        Attachment attachment = m.getContent().getAttachment().orElse(null);
+        if (attachment != null && isTransferring(attachment)) {
+            WebMenuItem cancelMenuItem = new WebMenuItem(Tr.tr("Cancel"));
+            cancelMenuItem.setToolTipText(Tr.tr("Cancel attachment transfer"));
+            cancelMenuItem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent event) {
+                    mView.getControl().cancelTransfer(m);
+                }
+            });
+            menu.add(cancelMenuItem);
+        }
+
         return menu;
     }
 
@@ -659,7 +738,10 @@ final class MessageList extends ListView<KonMessage> {
 
                 // status text
                 String statusText;
-                if (!linkPath.toString().isEmpty() && !att.isEncrypted()) {
+                String transferText = transferText(att);
+                if (!transferText.isEmpty()) {
+                    statusText = Tr.tr("Attachment:") + " " + transferText;
+                } else if (!linkPath.toString().isEmpty() && !att.isEncrypted()) {
                     // file should exist, no status needed
                     statusText = "";
                 } else {
@@ -712,6 +794,28 @@ final class MessageList extends ListView<KonMessage> {
         }
     }
 
+    private static boolean isTransferring(Attachment att) {
+        switch (att.getTransferState()) {
+            case QUEUED:
+            case RUNNING:
+            case WAITING: return true;
+            default: return false;
+        }
+    }
+
+    /** Status of running or ended transfer, empty if status is given by file. */
+    private static String transferText(Attachment att) {
+        boolean upload = att instanceof OutAttachment;
+        switch (att.getTransferState()) {
+            case QUEUED: return Tr.tr("queued");
+            case RUNNING: return upload ? Tr.tr("uploading…") : "";
+            case WAITING: return Tr.tr("waiting for retry");
+            case CANCELLED: return Tr.tr("cancelled");
+            case FAILED: return upload ? Tr.tr("upload failed") : Tr.tr("download failed");
+            default: return "";
+        }
+    }
+
     private static String getFromString(InMessage message) {
         return Utils.displayName(message.getContact(), message.getJID(), View.MAX_NAME_IN_FROM_LABEL);
     }
@@ -9,13 +9,17 @@ import java.util.Observer;
  */
 interface ObserverTrait extends Observer {
 
+    /**
+     * Changes on the EDT are handled immediately, changes from other threads
+     * are batched per frame, see ChangeBus.
+     */
     @Override
     default void update(Observable o, Object arg) {
         if (SwingUtilities.isEventDispatchThread()) {
             this.updateOnEDT(o, arg);
             return;
         }
-        SwingUtilities.invokeLater(() -> ObserverTrait.this.updateOnEDT(o, arg));
+        ChangeBus.post(this, o, arg);
     }
 
     void updateOnEDT(Observable o, Object arg);
@@ -102,6 +102,14 @@ final class TrayManager implements ObserverTrait {
             return;
 
         mTrayIcon.setImage(getTrayImage());
+        mTrayIcon.setToolTip(this.getTrayToolTip());
+    }
+
+    private String getTrayToolTip() {
+        int unread = mModel.chats().getUnreadCount();
+        return unread > 0 ?
+                "Kontalk (" + unread + ")" :
+                "Kontalk";
     }
 
     private Image getTrayImage() {
@@ -154,7 +162,7 @@ final class TrayManager implements ObserverTrait {
             }
         };
 
-        TrayIcon trayIcon = new TrayIcon(this.getTrayImage(), "Kontalk" /*, popup*/);
+        TrayIcon trayIcon = new TrayIcon(this.getTrayImage(), this.getTrayToolTip() /*, popup*/);
         trayIcon.setImageAutoSize(true);
         trayIcon.addMouseListener(listener);
         return trayIcon;
@@ -27,6 +27,7 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Optional;
 import java.util.concurrent.Callable;
@@ -426,6 +427,14 @@ public final class View implements ObserverTrait {
         mContent.showNothing();
     }
 
+    Map<Chat, List<Integer>> searchMessages(String search) {
+        return mModel.searchMessages(search);
+    }
+
+    List<Integer> searchMessages(Chat chat, String search) {
+        return mModel.searchMessages(chat, search);
+    }
+
     boolean chatIsVisible(Chat chat) {
         return mChatView.getCurrentChat().orElse(null) == chat && mMainFrame.isFocused();
     }
@@ -0,0 +1,228 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kontalk.misc.KonException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Transfers against a local stand-in server that drops connections.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class HTTPFileClientTest {
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private static final int FILE_SIZE = 3 * (int) HTTPFileClient.CHUNK_SIZE + 17;
+
+    private static KeyPair KEY_PAIR;
+    private static X509Certificate CERTIFICATE;
+    private static byte[] DATA;
+
+    private StandInServer mServer;
+    private HTTPFileClient mClient;
+
+    @BeforeClass
+    public static void setUpClass()
+            throws GeneralSecurityException, OperatorCreationException {
+        // client certificate is only used for HTTPS
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(2048);
+        KEY_PAIR = gen.generateKeyPair();
+        X500Name name = new X500Name("CN=test");
+        Date now = new Date();
+        CERTIFICATE = new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(name, BigInteger.ONE, now,
+                        new Date(now.getTime() + 24 * 60 * 60 * 1000), name,
+                        KEY_PAIR.getPublic())
+                        .build(new JcaContentSignerBuilder("SHA256withRSA")
+                                .build(KEY_PAIR.getPrivate())));
+
+        DATA = new byte[FILE_SIZE];
+        new SecureRandom().nextBytes(DATA);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+        mClient = new HTTPFileClient(KEY_PAIR.getPrivate(), CERTIFICATE, false, 2);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.close();
+        mServer.stop();
+    }
+
+    /**
+     * Test that the upload of a file with one request reports progress.
+     */
+    @Test
+    public void testUploadProgress() throws IOException, KonException {
+        System.out.println("uploadProgress");
+        File file = this.dataFile();
+        List<Integer> progress = new ArrayList<>();
+
+        mClient.upload(file, mServer.url("file.dat"), "application/octet-stream", false,
+                progress::add, new HTTPFileClient.Transfer());
+
+        assertArrayEquals(DATA, mServer.getFile("file.dat"));
+        assertProgress(progress);
+    }
+
+    /**
+     * Test that a chunked upload interrupted in the middle of a chunk resumes
+     * with the failed chunk.
+     */
+    @Test
+    public void testChunkedUploadResume() throws IOException, KonException {
+        System.out.println("chunkedUploadResume");
+        File file = this.dataFile();
+        HTTPFileClient.ChunkedUpload upload = new HTTPFileClient.ChunkedUpload(file,
+                mServer.url("file.dat"), "application/octet-stream", true);
+        List<Integer> progress = new ArrayList<>();
+
+        mServer.failAfter(HTTPFileClient.CHUNK_SIZE + HTTPFileClient.CHUNK_SIZE / 2);
+        try {
+            mClient.upload(upload, progress::add, new HTTPFileClient.Transfer());
+            fail("connection not dropped");
+        } catch (KonException ex) {
+            assertEquals(KonException.Error.UPLOAD_EXECUTE, ex.getError());
+        }
+        assertEquals(HTTPFileClient.CHUNK_SIZE, upload.getOffset());
+        assertTrue(progress.get(progress.size() - 1) > 33);
+
+        progress.clear();
+        mClient.upload(upload, progress::add, new HTTPFileClient.Transfer());
+
+        assertEquals(FILE_SIZE, upload.getOffset());
+        assertArrayEquals(DATA, mServer.getFile("file.dat"));
+        // progress starts again at acknowledged data
+        assertEquals(33, (int) progress.get(0));
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+        // only the interrupted chunk is sent twice
+        assertTrue(mServer.getReceived() <= FILE_SIZE + HTTPFileClient.CHUNK_SIZE);
+        System.out.println("sent "+mServer.getReceived()+" bytes for "+FILE_SIZE+" bytes file");
+    }
+
+    /**
+     * Test that an interrupted download resumes with the missing data.
+     */
+    @Test
+    public void testDownloadResume() throws IOException, KonException {
+        System.out.println("downloadResume");
+        Path base = mTempFolder.newFolder("download").toPath();
+        mServer.putFile("file.dat", DATA);
+
+        mServer.failAfter(FILE_SIZE / 2);
+        try {
+            mClient.download(mServer.url("file.dat"), base, p -> {});
+            fail("connection not dropped");
+        } catch (KonException ex) {
+            assertEquals(KonException.Error.DOWNLOAD_WRITE, ex.getError());
+        }
+
+        List<Integer> progress = new ArrayList<>();
+        Path path = mClient.download(mServer.url("file.dat"), base, progress::add);
+
+        assertArrayEquals(DATA, Files.readAllBytes(path));
+        assertEquals(1, mServer.getPartialRequests());
+        assertTrue(progress.get(0) >= 50);
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+        // partial data is deleted
+        assertEquals(1, base.toFile().list().length);
+    }
+
+    /**
+     * Test that aborting a transfer stops the running request and all
+     * following requests.
+     */
+    @Test
+    public void testAbort() throws IOException {
+        System.out.println("abort");
+        Path base = mTempFolder.newFolder("download").toPath();
+        mServer.putFile("file.dat", DATA);
+
+        HTTPFileClient.Transfer transfer = new HTTPFileClient.Transfer();
+        try {
+            mClient.download(mServer.url("file.dat"), base, p -> {
+                    if (p >= 10)
+                        transfer.abort();
+                }, (in, outFile) -> Files.copy(in, outFile.toPath()), transfer);
+            fail("download not aborted");
+        } catch (KonException ex) {
+            assertEquals(KonException.Error.DOWNLOAD_WRITE, ex.getError());
+        }
+        assertTrue(transfer.isAborted());
+        // incomplete file is deleted
+        assertFalse(base.resolve("file.dat").toFile().exists());
+
+        // aborted upload does not start
+        int requests = mServer.getRequests();
+        try {
+            mClient.upload(this.dataFile(), mServer.url("upload.dat"), "application/octet-stream",
+                    false, p -> {}, transfer);
+            fail("upload not aborted");
+        } catch (KonException ex) {
+            assertEquals(KonException.Error.UPLOAD_EXECUTE, ex.getError());
+        }
+        assertEquals(requests, mServer.getRequests());
+    }
+
+    private File dataFile() throws IOException {
+        File file = mTempFolder.newFile("upload.dat");
+        Files.write(file.toPath(), DATA);
+        return file;
+    }
+
+    private static void assertProgress(List<Integer> progress) {
+        assertEquals(0, (int) progress.get(0));
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+        for (int i = 1; i < progress.size(); i++)
+            assertTrue(progress.get(i) >= progress.get(i - 1));
+    }
+}
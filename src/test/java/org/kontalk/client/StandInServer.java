@@ -0,0 +1,220 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local HTTP server standing in for the upload and download server.
+ *
+ * Files are stored in memory. Uploads may be sent in chunks with a
+ * 'Content-Range' header, downloads support 'Range' and 'If-Range'
+ * requests. A failure can be injected to drop the connection in the middle
+ * of a transfer.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class StandInServer {
+
+    private static final Pattern UPLOAD_RANGE_PATTERN = Pattern
+            .compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final Pattern DOWNLOAD_RANGE_PATTERN = Pattern
+            .compile("bytes=(\\d+)-");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> mFiles = new ConcurrentHashMap<>();
+
+    // body bytes transferred before the connection is dropped, -1 if none
+    private final AtomicLong mFailAfter = new AtomicLong(-1);
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mPartialRequests = new AtomicInteger();
+
+    StandInServer() throws IOException {
+        mServer = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    URI url(String name) {
+        return URI.create("http://" + InetAddress.getLoopbackAddress().getHostAddress() +
+                ":" + mServer.getAddress().getPort() + "/" + name);
+    }
+
+    /**
+     * Drop the connection once, after some more body bytes were sent or
+     * received by the following requests.
+     */
+    void failAfter(long bytes) {
+        mFailAfter.set(bytes);
+    }
+
+    void putFile(String name, byte[] data) {
+        mFiles.put("/" + name, data);
+    }
+
+    byte[] getFile(String name) {
+        return mFiles.get("/" + name);
+    }
+
+    int getRequests() {
+        return mRequests.get();
+    }
+
+    /** Number of received upload body bytes. */
+    long getReceived() {
+        return mReceived.get();
+    }
+
+    /** Number of 'Content-Range' uploads and 'Range' downloads. */
+    int getPartialRequests() {
+        return mPartialRequests.get();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        mRequests.incrementAndGet();
+        try {
+            switch (exchange.getRequestMethod()) {
+                case "PUT": this.handleUpload(exchange); break;
+                case "GET": this.handleDownload(exchange); break;
+                default: exchange.sendResponseHeaders(405, -1);
+            }
+        } catch (IOException ex) {
+            // connection dropped
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleUpload(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        byte[] body = this.read(exchange.getRequestBody());
+
+        String range = exchange.getRequestHeaders().getFirst("Content-Range");
+        if (range == null) {
+            mFiles.put(path, body);
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        Matcher m = UPLOAD_RANGE_PATTERN.matcher(range);
+        if (!m.matches() || Long.parseLong(m.group(2)) - Long.parseLong(m.group(1)) + 1 !=
+                body.length) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        mPartialRequests.incrementAndGet();
+        int start = Integer.parseInt(m.group(1));
+        int total = Integer.parseInt(m.group(3));
+        byte[] file = mFiles.compute(path, (p, data) ->
+                data != null && data.length == total ? data : new byte[total]);
+        System.arraycopy(body, 0, file, start, body.length);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void handleDownload(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        byte[] data = mFiles.get(path);
+        if (data == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        String eTag = "\"" + Arrays.hashCode(data) + "\"";
+        exchange.getResponseHeaders().set("ETag", eTag);
+        exchange.getResponseHeaders().set("Content-Disposition",
+                "attachment; filename=\"" + path.substring(1) + "\"");
+
+        int start = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        Matcher m = DOWNLOAD_RANGE_PATTERN.matcher(range != null ? range : "");
+        if (m.matches() && eTag.equals(ifRange)) {
+            mPartialRequests.incrementAndGet();
+            start = Integer.parseInt(m.group(1));
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + (data.length - 1) + "/" + data.length);
+            exchange.sendResponseHeaders(206, data.length - start);
+        } else {
+            exchange.sendResponseHeaders(200, data.length);
+        }
+
+        OutputStream out = exchange.getResponseBody();
+        for (int i = start; i < data.length; i += BUFFER_SIZE) {
+            int n = Math.min(BUFFER_SIZE, data.length - i);
+            out.write(data, i, n);
+            if (this.exhausted(n)) {
+                out.flush();
+                throw new IOException("injected failure");
+            }
+        }
+    }
+
+    private byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            mReceived.addAndGet(n);
+            if (this.exhausted(n))
+                throw new IOException("injected failure");
+        }
+        return out.toByteArray();
+    }
+
+    /** Count transferred bytes, true if the connection should be dropped. */
+    private boolean exhausted(int n) {
+        long left = mFailAfter.get();
+        if (left < 0)
+            return false;
+        if (n < left) {
+            mFailAfter.set(left - n);
+            return false;
+        }
+        mFailAfter.set(-1);
+        return true;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Optional;
+import org.apache.commons.io.output.NullOutputStream;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class EncryptorTest {
+    @ClassRule
+    public static TemporaryFolder TEMP_FOLDER = new TemporaryFolder();
+
+    /** Buffer size before buffers were pooled. */
+    private static final int OLD_BUFFER_SIZE = 1 << 8;
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int BENCHMARK_ROUNDS = 3;
+
+    private static final String USER_ID = "test <test@kontalk.test>";
+
+    private static PGPKeyPair SIGN_KEY;
+    private static PGPKeyPair ENCRYPT_KEY;
+    private static File PLAIN_FILE;
+
+    @BeforeClass
+    public static void setUpClass() throws PGPException, IOException {
+        RSAKeyPairGenerator gen = new RSAKeyPairGenerator();
+        gen.init(new RSAKeyGenerationParameters(
+                BigInteger.valueOf(0x10001), new SecureRandom(), 2048, 12));
+        SIGN_KEY = new BcPGPKeyPair(PGPPublicKey.RSA_SIGN, gen.generateKeyPair(), new Date());
+        ENCRYPT_KEY = new BcPGPKeyPair(PGPPublicKey.RSA_ENCRYPT, gen.generateKeyPair(), new Date());
+
+        // random data like compressed media
+        byte[] data = new byte[FILE_SIZE];
+        new SecureRandom().nextBytes(data);
+        PLAIN_FILE = TEMP_FOLDER.newFile("plain.dat");
+        Files.write(PLAIN_FILE.toPath(), data);
+    }
+
+    /**
+     * Test that encrypted data is decrypted and verified.
+     */
+    @Test
+    public void testRoundTrip() throws IOException, PGPException {
+        System.out.println("roundTrip");
+        byte[] plain = new byte[3 * BufferPool.BUFFER_SIZE + 17];
+        new SecureRandom().nextBytes(plain);
+
+        for (boolean compress : new boolean[]{true, false}) {
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            encrypt(new ByteArrayInputStream(plain), encrypted, BufferPool.BUFFER_SIZE, compress);
+
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            Decryptor.DecryptionResult result = Decryptor.decryptAndVerify(
+                    new ByteArrayInputStream(encrypted.toByteArray()),
+                    decrypted,
+                    ENCRYPT_KEY.getPrivateKey(),
+                    Optional.of(SIGN_KEY.getPublicKey()));
+
+            assertTrue(result.errors.isEmpty());
+            assertEquals(Coder.Signing.VERIFIED, result.signing);
+            assertArrayEquals(plain, decrypted.toByteArray());
+        }
+    }
+
+    /**
+     * Test the entropy estimation used for the compression decision.
+     */
+    @Test
+    public void testEntropy() throws IOException {
+        System.out.println("entropy");
+        byte[] random = new byte[4096];
+        new SecureRandom().nextBytes(random);
+        assertTrue(Encryptor.entropy(random, random.length) > 7.5);
+
+        byte[] text = new byte[4096];
+        byte[] line = "Hello Kontalk, how are you today?\n".getBytes("UTF-8");
+        for (int i = 0; i < text.length; i++)
+            text[i] = line[i % line.length];
+        assertTrue(Encryptor.entropy(text, text.length) < 5);
+    }
+
+    /**
+     * Compare CPU time for encrypting already compressed data with and
+     * without PGP compression.
+     */
+    @Test
+    public void testCompressionCPUTime() throws IOException, PGPException {
+        System.out.println("compressionCPUTime");
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        byte[] plain = Files.readAllBytes(PLAIN_FILE.toPath());
+
+        long compressTime = Long.MAX_VALUE;
+        long noCompressTime = Long.MAX_VALUE;
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            long start = bean.getCurrentThreadCpuTime();
+            encrypt(new ByteArrayInputStream(plain), new NullOutputStream(),
+                    BufferPool.BUFFER_SIZE, true);
+            compressTime = Math.min(compressTime, bean.getCurrentThreadCpuTime() - start);
+
+            start = bean.getCurrentThreadCpuTime();
+            encrypt(new ByteArrayInputStream(plain), new NullOutputStream(),
+                    BufferPool.BUFFER_SIZE, false);
+            noCompressTime = Math.min(noCompressTime, bean.getCurrentThreadCpuTime() - start);
+        }
+
+        System.out.println("CPU time for "+FILE_SIZE / (1024 * 1024)+" MiB upload, compressed: "
+                + compressTime / 1_000_000+" ms, not compressed: "
+                + noCompressTime / 1_000_000+" ms, saved: "
+                + (compressTime - noCompressTime) / 1_000_000+" ms");
+    }
+
+    /**
+     * Compare attachment encryption throughput of small unpooled buffers
+     * with plain file streams and pooled buffers with file channels.
+     */
+    @Test
+    public void testThroughputBenchmark() throws IOException, PGPException {
+        System.out.println("throughputBenchmark");
+        File encrypted = TEMP_FOLDER.newFile("encrypted.dat");
+        File decrypted = TEMP_FOLDER.newFile("decrypted.dat");
+
+        long oldTime = Long.MAX_VALUE;
+        long newTime = Long.MAX_VALUE;
+        long decryptTime = Long.MAX_VALUE;
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            long start = System.nanoTime();
+            try (InputStream in = new FileInputStream(PLAIN_FILE);
+                    OutputStream out = new FileOutputStream(encrypted)) {
+                encrypt(in, out, OLD_BUFFER_SIZE, true);
+            }
+            oldTime = Math.min(oldTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            try (InputStream in = Channels.newInputStream(
+                            FileChannel.open(PLAIN_FILE.toPath(), StandardOpenOption.READ));
+                    OutputStream out = Channels.newOutputStream(FileChannel.open(encrypted.toPath(),
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+                encrypt(in, out, BufferPool.BUFFER_SIZE, true);
+            }
+            newTime = Math.min(newTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            try (InputStream in = Channels.newInputStream(
+                            FileChannel.open(encrypted.toPath(), StandardOpenOption.READ));
+                    OutputStream out = Channels.newOutputStream(FileChannel.open(decrypted.toPath(),
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+                Decryptor.decryptAndVerify(in, out,
+                        ENCRYPT_KEY.getPrivateKey(), Optional.of(SIGN_KEY.getPublicKey()));
+            }
+            decryptTime = Math.min(decryptTime, System.nanoTime() - start);
+        }
+
+        System.out.println("encryption, "+OLD_BUFFER_SIZE+" byte buffers: "
+                + megabytesPerSecond(oldTime)+" MB/s");
+        System.out.println("encryption, pooled "+BufferPool.BUFFER_SIZE+" byte buffers: "
+                + megabytesPerSecond(newTime)+" MB/s");
+        System.out.println("decryption, pooled buffers: "
+                + megabytesPerSecond(decryptTime)+" MB/s");
+        assertEquals(FILE_SIZE, decrypted.length());
+    }
+
+    private static void encrypt(InputStream in, OutputStream out, int bufferSize,
+            boolean compress)
+            throws IOException, PGPException {
+        Encryptor.encryptAndSign(in, out,
+                SIGN_KEY.getPrivateKey(), SIGN_KEY.getPublicKey().getAlgorithm(), USER_ID,
+                Collections.singletonList(ENCRYPT_KEY.getPublicKey()), bufferSize, compress);
+    }
+
+    private static long megabytesPerSecond(long nanos) {
+        return FILE_SIZE * 1_000_000_000L / (nanos * 1024 * 1024);
+    }
+}
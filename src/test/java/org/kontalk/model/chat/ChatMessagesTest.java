@@ -0,0 +1,155 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.model.chat;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kontalk.misc.JID;
+import org.kontalk.model.Contact;
+import org.kontalk.model.Model;
+import org.kontalk.model.message.KonMessage;
+import org.kontalk.model.message.MessageContent;
+import org.kontalk.model.message.OutMessage;
+import org.kontalk.persistence.Config;
+import org.kontalk.persistence.Database;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class ChatMessagesTest {
+    @ClassRule
+    public static TemporaryFolder TEMP_FOLDER = new TemporaryFolder();
+
+    private static final int MESSAGES = 20_000;
+    private static final int APPENDERS = 4;
+    private static final int READERS = 4;
+
+    private static Database DB;
+    private static Model MODEL;
+    private static Contact CONTACT;
+
+    public ChatMessagesTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Path appDir = TEMP_FOLDER.newFolder("app_dir").toPath();
+        Config.initialize(appDir);
+        DB = new Database(appDir);
+        MODEL = Model.setup(DB, appDir);
+        CONTACT = MODEL.contacts().create(JID.bare("bench@example.org"), "bench").get();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        DB.close();
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Parallel appenders and readers on the messages of one chat. Reports the
+     * throughput of both and checks that all messages are added in order.
+     */
+    @Test
+    public void testContention() throws Exception {
+        System.out.println("contention");
+        Chat chat = MODEL.chats().getOrCreate(CONTACT);
+        // messages are created (and inserted) beforehand, only the in-memory
+        // store is measured
+        List<KonMessage> messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.add(new OutMessage(chat, Collections.singletonList(CONTACT),
+                    MessageContent.plainText("message " + i), false));
+        }
+        ChatMessages chatMessages = new ChatMessages(chat);
+
+        ExecutorService executor = Executors.newFixedThreadPool(APPENDERS + READERS);
+        AtomicBoolean appending = new AtomicBoolean(true);
+        AtomicLong reads = new AtomicLong();
+        List<Future<?>> appenders = new ArrayList<>();
+        List<Future<?>> readers = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(executor.submit(() -> {
+                while (appending.get()) {
+                    // what the view does: iterate, get last and predecessor
+                    KonMessage previous = null;
+                    for (KonMessage message : chatMessages.getAll()) {
+                        if (previous != null)
+                            assertTrue(previous.getID() < message.getID()
+                                    || previous.getDate().before(message.getDate()));
+                        previous = message;
+                    }
+                    chatMessages.getLast().ifPresent(chatMessages::getPredecessor);
+                    reads.incrementAndGet();
+                }
+            }));
+        }
+        for (int a = 0; a < APPENDERS; a++) {
+            int offset = a;
+            appenders.add(executor.submit(() -> {
+                for (int i = offset; i < MESSAGES; i += APPENDERS) {
+                    KonMessage message = messages.get(i);
+                    chatMessages.add(message);
+                    chatMessages.getLast(message.getXMPPID());
+                }
+            }));
+        }
+        for (Future<?> future : appenders)
+            future.get();
+        long appendTime = System.nanoTime() - start;
+        appending.set(false);
+        for (Future<?> future : readers)
+            future.get();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        System.out.println("appended " + MESSAGES + " messages in "
+                + TimeUnit.NANOSECONDS.toMillis(appendTime) + " ms with "
+                + READERS + " readers, " + reads.get() + " full reads");
+        assertEquals(MESSAGES, chatMessages.size());
+        assertEquals(messages.get(MESSAGES - 1), chatMessages.getLast().get());
+        assertEquals(MESSAGES, chatMessages.getPending().size());
+    }
+}
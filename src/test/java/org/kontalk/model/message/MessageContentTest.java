@@ -0,0 +1,195 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.model.message;
+
+import java.net.URI;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kontalk.misc.JID;
+import org.kontalk.model.message.MessageContent.GroupCommand;
+import org.kontalk.model.message.MessageContent.InAttachment;
+import org.kontalk.model.message.MessageContent.Preview;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class MessageContentTest {
+
+    private static final int BENCHMARK_ROUNDS = 100_000;
+    private static final int HEAP_MESSAGES = 100_000;
+
+    public MessageContentTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test that binary encoding keeps all content.
+     */
+    @Test
+    public void testBinaryRoundTrip() {
+        System.out.println("binaryRoundTrip");
+        MessageContent content = createContent();
+
+        byte[] bytes = content.toBytes();
+        MessageContent decoded = MessageContent.fromDatabase(bytes);
+
+        assertEquals(content.toJSON(), decoded.toJSON());
+        assertEquals("decrypted text", decoded.getText());
+        assertEquals("image/png", decoded.getPreview().get().getMimeType());
+        assertEquals(GroupCommand.OP.CREATE, decoded.getGroupCommand().get().getOperation());
+        // encoding again without decoding lazy parts
+        assertArrayEquals(bytes, MessageContent.fromBytes(bytes).toBytes());
+    }
+
+    /**
+     * Compare encoding and decoding time and size of JSON and binary format.
+     */
+    @Test
+    public void testEncodingBenchmark() {
+        System.out.println("encodingBenchmark");
+        MessageContent content = createContent();
+        String json = content.toJSON();
+        byte[] bytes = content.toBytes();
+
+        // warm-up
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            MessageContent.fromJSONString(content.toJSON());
+            MessageContent.fromBytes(content.toBytes());
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+            MessageContent.fromJSONString(content.toJSON()).getText();
+        long jsonTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+            MessageContent.fromBytes(content.toBytes()).getText();
+        long binaryTime = System.nanoTime() - start;
+
+        System.out.println("JSON: "+json.length()+" chars, "
+                + jsonTime / BENCHMARK_ROUNDS + " ns per round trip");
+        System.out.println("binary: "+bytes.length+" bytes, "
+                + binaryTime / BENCHMARK_ROUNDS + " ns per round trip");
+        assertTrue(bytes.length < json.length());
+    }
+
+    /**
+     * Test that content in JSON format is still decoded.
+     */
+    @Test
+    public void testJSONMigration() {
+        System.out.println("JSONMigration");
+        MessageContent content = createContent();
+
+        MessageContent decoded = MessageContent.fromDatabase(content.toJSON());
+
+        assertEquals(content.toString(), decoded.toString());
+        assertArrayEquals(content.toBytes(), decoded.toBytes());
+    }
+
+    /**
+     * Test that loaded parts are only decoded when accessed.
+     */
+    @Test
+    public void testLazyDecoding() {
+        System.out.println("lazyDecoding");
+        // encrypted content is deleted when decrypted, not in the same content
+        MessageContent encrypted = MessageContent.fromBytes(new MessageContent.Builder()
+                .encrypted("-----BEGIN PGP MESSAGE-----").build().toBytes());
+        MessageContent content = MessageContent.fromBytes(createContent().toBytes());
+
+        // encoded parts are printed with their size
+        assertTrue(encrypted.toString().contains(",encr=<"));
+        String encoded = content.toString();
+        for (String part : Arrays.asList("att", "gc", "decr"))
+            assertTrue(encoded.contains(","+part+"=<"));
+
+        encrypted.getEncryptedContent();
+        content.getAttachment();
+        content.getGroupCommand();
+        assertFalse(encrypted.toString().contains("=<"));
+        assertFalse(content.toString().contains("=<"));
+    }
+
+    /**
+     * Compare heap usage of loaded content before and after all parts are
+     * accessed.
+     */
+    @Test
+    public void testIdleHeapUsage() {
+        System.out.println("idleHeapUsage");
+        byte[] bytes = createContent().toBytes();
+        MessageContent[] contents = new MessageContent[HEAP_MESSAGES];
+
+        long before = usedMemory();
+        for (int i = 0; i < HEAP_MESSAGES; i++)
+            contents[i] = MessageContent.fromBytes(bytes);
+        long idle = usedMemory() - before;
+
+        for (MessageContent content : contents) {
+            content.getText();
+            content.getAttachment();
+            content.getPreview();
+            content.getGroupCommand();
+        }
+        long materialized = usedMemory() - before;
+        // keep contents reachable until measured
+        assertEquals("decrypted text", contents[HEAP_MESSAGES - 1].getText());
+
+        System.out.println("idle: " + idle / HEAP_MESSAGES + " bytes per message, "
+                + "materialized: " + materialized / HEAP_MESSAGES + " bytes per message");
+    }
+
+    // approximate, garbage collection is only requested
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static MessageContent createContent() {
+        InAttachment attachment = new InAttachment(URI.create("https://example.org/file"));
+        attachment.setFile("file.png", true);
+        MessageContent content = new MessageContent.Builder()
+                .encrypted("-----BEGIN PGP MESSAGE-----")
+                .attachment(attachment)
+                .preview(new Preview(new byte[0], "image/png"))
+                .groupCommand(GroupCommand.create(
+                        Arrays.asList(JID.bare("a@example.org"), JID.bare("b@example.org")),
+                        "subject"))
+                .build();
+        content.setDecryptedContent(MessageContent.plainText("decrypted text"));
+        return content;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.persistence;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kontalk.misc.KonException;
+import org.kontalk.model.Contact;
+import org.kontalk.model.chat.Chat;
+import org.kontalk.model.chat.Member;
+import org.kontalk.model.message.KonMessage;
+import org.kontalk.model.message.Transmission;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class DatabaseTest {
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private Path mAppDir;
+
+    public DatabaseTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mAppDir = mTempFolder.newFolder("app_dir").toPath();
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test that loading a page of chat messages uses an index.
+     */
+    @Test
+    public void testChatMessagesQueryPlan() throws KonException, SQLException {
+        System.out.println("chatMessagesQueryPlan");
+        new Database(mAppDir).close();
+        String plan = this.queryPlan("SELECT * FROM " + KonMessage.TABLE +
+                " WHERE " + KonMessage.COL_CHAT_ID + " == 1 AND (" +
+                KonMessage.COL_DATE + ", _id) < (100, 5) ORDER BY " + KonMessage.COL_DATE +
+                " DESC, _id DESC LIMIT 50");
+        assertTrue(plan, plan.contains("INDEX"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /**
+     * Test that finding a message for a receipt uses an index.
+     */
+    @Test
+    public void testReceiptQueryPlan() throws KonException, SQLException {
+        System.out.println("receiptQueryPlan");
+        new Database(mAppDir).close();
+        String plan = this.queryPlan("SELECT * FROM " + KonMessage.TABLE +
+                " WHERE " + KonMessage.COL_CHAT_ID + " == 1 AND " +
+                KonMessage.COL_XMPP_ID + " == 'Kon_abc'");
+        assertTrue(plan, plan.contains("INDEX"));
+        assertTrue(plan, plan.contains(KonMessage.COL_XMPP_ID));
+    }
+
+    /**
+     * Test that loading transmissions of messages uses an index.
+     */
+    @Test
+    public void testTransmissionQueryPlan() throws KonException, SQLException {
+        System.out.println("transmissionQueryPlan");
+        new Database(mAppDir).close();
+        String plan = this.queryPlan("SELECT * FROM " + Transmission.TABLE +
+                " WHERE " + Transmission.COL_MESSAGE_ID + " IN (1, 2, 3)");
+        assertTrue(plan, plan.contains("INDEX"));
+        assertFalse(plan, plan.contains("SCAN"));
+    }
+
+    /**
+     * Test that updating a database from version 5 finishes, adds the
+     * indices and migrates the messages.
+     */
+    @Test
+    public void testUpdateFromVersion5() throws KonException, SQLException {
+        System.out.println("updateFromVersion5");
+        try (Connection conn = this.connect();
+                Statement stat = conn.createStatement()) {
+            stat.execute("CREATE TABLE " + Contact.TABLE + " " + Contact.SCHEMA);
+            // without unread column added in version 9
+            stat.execute("CREATE TABLE " + Chat.TABLE + " (" + Database.SQL_ID +
+                    Chat.COL_XMPPID + " TEXT UNIQUE, " +
+                    Chat.COL_SUBJ + " TEXT, " +
+                    Chat.COL_READ + " INTEGER NOT NULL, " +
+                    Chat.COL_VIEW_SET + " TEXT NOT NULL, " +
+                    Chat.COL_GD + " TEXT)");
+            stat.execute("CREATE TABLE " + Member.TABLE + " " + Member.SCHEMA);
+            // content in JSON format before version 8
+            stat.execute("CREATE TABLE messages (_id INTEGER PRIMARY KEY ASC, " +
+                    "thread_id INTEGER NOT NULL, " +
+                    "xmpp_id TEXT, " +
+                    "date INTEGER NOT NULL, " +
+                    "status INTEGER NOT NULL, " +
+                    "content TEXT NOT NULL, " +
+                    "encryption_status INTEGER NOT NULL, " +
+                    "signing_status INTEGER NOT NULL, " +
+                    "coder_errors INTEGER NOT NULL, " +
+                    "server_error TEXT, " +
+                    "server_date INTEGER, " +
+                    "FOREIGN KEY (thread_id) REFERENCES threads (_id))");
+            stat.execute("CREATE TABLE " + Transmission.TABLE + " " + Transmission.SCHEMA);
+            stat.execute("INSERT INTO threads VALUES (1, NULL, NULL, 1, '{}', NULL)");
+            stat.execute("INSERT INTO messages VALUES (1, 1, 'Kon_1', 100, 0, " +
+                    "'{\"plain_text\":\"Hello World\"}', 0, 0, 0, NULL, NULL)");
+            stat.execute("INSERT INTO messages VALUES (2, 1, 'Kon_2', 200, 0, " +
+                    "'{\"encrypted_content\":\"\",\"decrypted_content\":" +
+                    "\"{\\\"plain_text\\\":\\\"Hello Kontalk\\\"}\"}', 0, 0, 0, NULL, NULL)");
+            stat.execute("PRAGMA user_version = 5");
+        }
+
+        Database db = new Database(mAppDir);
+        assertEquals(Arrays.asList(1, 2), this.search(db, "hello"));
+        assertEquals(Arrays.asList(2), this.search(db, "kontalk"));
+        db.close();
+
+        try (Connection conn = this.connect();
+                Statement stat = conn.createStatement()) {
+            try (ResultSet rs = stat.executeQuery("PRAGMA user_version")) {
+                assertEquals(Database.DB_VERSION, rs.getInt(1));
+            }
+            try (ResultSet rs = stat.executeQuery("SELECT name FROM sqlite_master " +
+                    "WHERE type == 'index' AND name == 'messages_thread_id_date'")) {
+                assertTrue(rs.next());
+            }
+            try (ResultSet rs = stat.executeQuery("SELECT " + Chat.COL_UNREAD +
+                    " FROM " + Chat.TABLE)) {
+                assertTrue(rs.next());
+                assertEquals(0, rs.getInt(1));
+            }
+            try (ResultSet rs = stat.executeQuery("SELECT typeof(content), count(*) " +
+                    "FROM messages GROUP BY typeof(content)")) {
+                assertTrue(rs.next());
+                assertEquals("blob", rs.getString(1));
+                assertEquals(2, rs.getInt(2));
+                assertFalse(rs.next());
+            }
+        }
+    }
+
+    /**
+     * Test full-text search in the message index.
+     */
+    @Test
+    public void testSearch() throws KonException, SQLException {
+        System.out.println("search");
+        assertEquals("", Database.toMatchQuery("  "));
+        assertEquals("\"hel\"* \"a\"\"b\"*", Database.toMatchQuery("hel a\"b"));
+
+        Database db = new Database(mAppDir);
+        Map<String, Object> set = new HashMap<>();
+        set.put(KonMessage.COL_CHAT_ID, 2);
+        set.put(KonMessage.COL_FTS_TEXT, "Hello World");
+        db.execReplaceText(KonMessage.FTS_TABLE, 5, set);
+        db.commit();
+
+        try (Database.Query query = db.execSearch(KonMessage.FTS_TABLE,
+                Database.toMatchQuery("wor hel"), KonMessage.COL_CHAT_ID + " == ?",
+                Arrays.asList(2), 10)) {
+            ResultSet rs = query.resultSet();
+            assertTrue(rs.next());
+            assertEquals(5, rs.getInt("rowid"));
+            assertFalse(rs.next());
+        }
+        try (Database.Query query = db.execSearch(KonMessage.FTS_TABLE,
+                Database.toMatchQuery("world"), KonMessage.COL_CHAT_ID + " == ?",
+                Arrays.asList(3), 10)) {
+            assertFalse(query.resultSet().next());
+        }
+        db.close();
+    }
+
+    private List<Integer> search(Database db, String search) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        try (Database.Query query = db.execSearch(KonMessage.FTS_TABLE,
+                Database.toMatchQuery(search), "", Collections.emptyList(), 10)) {
+            ResultSet rs = query.resultSet();
+            while (rs.next())
+                ids.add(rs.getInt("rowid"));
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" +
+                mAppDir.resolve("kontalk_db.sqlite").toString());
+    }
+
+    private String queryPlan(String select) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (Connection conn = this.connect();
+                Statement stat = conn.createStatement();
+                ResultSet rs = stat.executeQuery("EXPLAIN QUERY PLAN " + select)) {
+            while (rs.next())
+                plan.append(rs.getString("detail")).append('\n');
+        }
+        return plan.toString();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.system;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kontalk.misc.KonException;
+import org.kontalk.model.chat.Chat;
+import org.kontalk.model.message.KonMessage;
+import org.kontalk.persistence.Database;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class AttachmentStoreTest {
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private Database mDB;
+    private Path mAttachmentDir;
+    private Path mPreviewDir;
+    private AttachmentStore mStore;
+
+    @Before
+    public void setUp() throws IOException, KonException {
+        Path appDir = mTempFolder.newFolder("app_dir").toPath();
+        mDB = new Database(appDir);
+        mAttachmentDir = Files.createDirectory(appDir.resolve(AttachmentManager.ATT_DIRNAME));
+        mPreviewDir = Files.createDirectory(appDir.resolve(AttachmentManager.PREVIEW_DIRNAME));
+        mStore = new AttachmentStore(mDB, mAttachmentDir, mPreviewDir);
+    }
+
+    @After
+    public void tearDown() {
+        mDB.close();
+    }
+
+    /**
+     * Test that the same file received in two messages is stored once and
+     * deleted after both messages are deleted.
+     */
+    @Test
+    public void testDeduplication() throws IOException {
+        System.out.println("deduplication");
+        byte[] data = new byte[64 * 1024];
+        new SecureRandom().nextBytes(data);
+        byte[] preview = Arrays.copyOf(data, 1024);
+        String previewHash = AttachmentStore.hash(preview);
+        int chatID = mDB.execInsert(Chat.TABLE, Arrays.asList(null, null, true, "{}", null, 0));
+        int firstID = this.insertMessage(chatID);
+        int secondID = this.insertMessage(chatID);
+        // file from before the store
+        Path oldFile = Files.write(mAttachmentDir.resolve("old.dat"), data);
+
+        // hashed while written
+        Path file = Files.write(mAttachmentDir.resolve("first.dat"), data);
+        MessageDigest digest = AttachmentStore.newDigest();
+        digest.update(data);
+        String first = mStore.putAttachment(firstID, file, digest);
+        mStore.putPreview(firstID, preview, previewHash, "image/jpeg");
+
+        // hashed after decryption
+        file = Files.write(mAttachmentDir.resolve("second.dat"), data);
+        String second = mStore.putAttachment(secondID, file);
+        mStore.putPreview(secondID, preview, previewHash, "image/jpeg");
+
+        assertEquals(AttachmentStore.hash(data) + "/first.dat", first);
+        assertEquals(first, second);
+        assertFalse(Files.exists(file));
+        assertArrayEquals(data, Files.readAllBytes(mAttachmentDir.resolve(first)));
+        // stored directory and old file
+        assertEquals(2, mAttachmentDir.toFile().list().length);
+        assertEquals(1, mPreviewDir.toFile().list().length);
+
+        this.deleteReferences(firstID);
+        assertEquals(0, mStore.collectGarbage());
+        assertTrue(Files.exists(mAttachmentDir.resolve(first)));
+
+        this.deleteReferences(secondID);
+        assertEquals(2, mStore.collectGarbage());
+        assertFalse(Files.exists(mAttachmentDir.resolve(first).getParent()));
+        assertEquals(0, mPreviewDir.toFile().list().length);
+        assertTrue(Files.exists(oldFile));
+    }
+
+    private int insertMessage(int chatID) {
+        List<Object> values = Arrays.asList(chatID, null, new Date(), 0, new byte[0],
+                0, 0, 0, null, null);
+        return mDB.execInsert(KonMessage.TABLE, values);
+    }
+
+    private void deleteReferences(int messageID) {
+        mDB.execDeleteWhere(AttachmentStore.TABLE, AttachmentStore.COL_MESSAGE_ID + " == ?",
+                Arrays.asList(messageID));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kontalk.system;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class DecryptionQueueTest {
+
+    private static final int MESSAGES = 10_000;
+    private static final int MESSAGE_SIZE = 16 * 1024;
+    // decryption rounds per message to get closer to PGP costs
+    private static final int ROUNDS = 8;
+
+    private static SecretKey KEY;
+    private static byte[] IV;
+    private static byte[][] ENCRYPTED;
+    private static byte[] PLAIN;
+
+    @BeforeClass
+    public static void setUpClass() throws GeneralSecurityException {
+        SecureRandom random = new SecureRandom();
+        byte[] rawKey = new byte[16];
+        random.nextBytes(rawKey);
+        KEY = new SecretKeySpec(rawKey, "AES");
+        IV = new byte[12];
+        random.nextBytes(IV);
+        PLAIN = new byte[MESSAGE_SIZE];
+        random.nextBytes(PLAIN);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, KEY, new GCMParameterSpec(128, IV));
+        byte[] encrypted = cipher.doFinal(PLAIN);
+        ENCRYPTED = new byte[MESSAGES][];
+        for (int i = 0; i < MESSAGES; i++)
+            ENCRYPTED[i] = encrypted;
+    }
+
+    /**
+     * Test that messages are handled in queue order.
+     */
+    @Test(timeout = 60_000)
+    public void testOrder() {
+        System.out.println("order");
+        List<Integer> handled = this.run(Runtime.getRuntime().availableProcessors()).handled;
+
+        assertEquals(MESSAGES, handled.size());
+        for (int i = 0; i < MESSAGES; i++)
+            assertEquals(i, (int) handled.get(i));
+    }
+
+    /**
+     * Test that handling without decryption waits for earlier messages.
+     */
+    @Test(timeout = 60_000)
+    public void testEventOrder() {
+        System.out.println("eventOrder");
+        DecryptionQueue queue = new DecryptionQueue(2);
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 100; i++) {
+            int index = i;
+            if (i % 2 == 0)
+                queue.queue(() -> decrypt(ENCRYPTED[index]), () -> handled.add(index));
+            else
+                queue.queue(() -> handled.add(index));
+        }
+        queue.shutDown();
+
+        assertEquals(100, handled.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, (int) handled.get(i));
+    }
+
+    /**
+     * Compare throughput for queued encrypted messages with one and with all
+     * available cores.
+     */
+    @Test(timeout = 300_000)
+    public void testThroughputBenchmark() {
+        System.out.println("throughputBenchmark");
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // warm-up
+        this.run(cores);
+
+        long single = this.run(1).time;
+        long parallel = this.run(cores).time;
+
+        System.out.println("1 worker: "+MESSAGES * 1000L / Math.max(single, 1)+" messages/s");
+        System.out.println(cores+" workers: "+MESSAGES * 1000L / Math.max(parallel, 1)+" messages/s");
+    }
+
+    private Result run(int workers) {
+        DecryptionQueue queue = new DecryptionQueue(workers);
+        Result result = new Result();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < MESSAGES; i++) {
+            int index = i;
+            byte[][] decrypted = new byte[1][];
+            queue.queue(
+                    () -> decrypted[0] = decrypt(ENCRYPTED[index]),
+                    // asserted by the caller, a failure here would stop the
+                    // release thread
+                    () -> result.handled.add(
+                            Arrays.equals(PLAIN, decrypted[0]) ? index : -1));
+        }
+        queue.shutDown();
+        result.time = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    private static byte[] decrypt(byte[] encrypted) {
+        try {
+            byte[] plain = null;
+            for (int i = 0; i < ROUNDS; i++) {
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, KEY, new GCMParameterSpec(128, IV));
+                plain = cipher.doFinal(encrypted);
+            }
+            return plain;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static final class Result {
+        // index of handled messages, -1 if wrongly decrypted
+        final List<Integer> handled =
+                Collections.synchronizedList(new ArrayList<>(MESSAGES));
+        long time;
+    }
+}